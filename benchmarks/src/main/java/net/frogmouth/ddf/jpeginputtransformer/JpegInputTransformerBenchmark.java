@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.metadata.Metadata;
+
+import ddf.catalog.data.BasicTypes;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardImpl;
+
+/**
+ * JMH benchmarks for {@link JpegInputTransformer}, end to end and for each stage of the pipeline.
+ *
+ * The corpus is generated by {@link SyntheticJpeg}, parameterised by the number of extra EXIF tags, the
+ * size of an APP15 padding segment and the image dimensions. Running the main method also attaches the
+ * GC profiler, so allocation rates are reported alongside the timings.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JpegInputTransformerBenchmark {
+
+    @Param({"0", "100", "1000"})
+    public int extraTags;
+
+    @Param({"0", "65000"})
+    public int paddingSegmentSize;
+
+    @Param({"640x480", "4000x3000"})
+    public String dimensions;
+
+    private JpegInputTransformer transformer;
+    private JpegInputTransformer streamingTransformer;
+    private byte[] jpeg;
+    private Metadata metadata;
+
+    @Setup
+    public void setUp() throws IOException, JpegProcessingException {
+        String[] size = dimensions.split("x");
+        jpeg = SyntheticJpeg.create(Integer.parseInt(size[0]), Integer.parseInt(size[1]), extraTags, paddingSegmentSize, 42);
+        transformer = new JpegInputTransformer();
+        streamingTransformer = new JpegInputTransformer();
+        streamingTransformer.setStreamingXmpWriter(true);
+        metadata = parse();
+    }
+
+    @Benchmark
+    public Metacard transform() throws Exception {
+        return transformer.transform(new ByteArrayInputStream(jpeg), "benchmark");
+    }
+
+    @Benchmark
+    public Metadata readMetadata() throws Exception {
+        return parse();
+    }
+
+    @Benchmark
+    public MetacardImpl processGPSDirectory() {
+        MetacardImpl metacard = new MetacardImpl(BasicTypes.BASIC_METACARD);
+        transformer.processGPSDirectory(metadata, metacard);
+        return metacard;
+    }
+
+    @Benchmark
+    public MetacardImpl convertImageMetadataToMetacardMetadata() throws Exception {
+        MetacardImpl metacard = new MetacardImpl(BasicTypes.BASIC_METACARD);
+        transformer.convertImageMetadataToMetacardMetadata(metadata, metacard);
+        return metacard;
+    }
+
+    @Benchmark
+    public MetacardImpl convertImageMetadataToMetacardMetadataStreaming() throws Exception {
+        MetacardImpl metacard = new MetacardImpl(BasicTypes.BASIC_METACARD);
+        streamingTransformer.convertImageMetadataToMetacardMetadata(metadata, metacard);
+        return metacard;
+    }
+
+    @Benchmark
+    public MetacardImpl generateThumbnail() {
+        MetacardImpl metacard = new MetacardImpl(BasicTypes.BASIC_METACARD);
+        transformer.generateThumbnail(metadata, metacard);
+        return metacard;
+    }
+
+    private Metadata parse() throws IOException, JpegProcessingException {
+        JpegHeaderReader headerReader = new JpegHeaderReader(new ByteArrayInputStream(jpeg));
+        return JpegMetadataReader.extractMetadataFromJpegSegmentReader(headerReader.getSegmentData());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(JpegInputTransformerBenchmark.class.getSimpleName())
+                .include(SubsampledThumbnailBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ddf.catalog.data.Metacard;
+
+/**
+ * JMH benchmarks for the thumbnail decoded at reduced resolution from images that have no embedded EXIF
+ * thumbnail, on its own from a stream and from a buffer, and as part of the whole transform.
+ *
+ * The images are generated by {@link SyntheticJpeg#createWithoutExif}, so each one is a plain JFIF file.
+ * They are run by the main method of {@link JpegInputTransformerBenchmark}.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubsampledThumbnailBenchmark {
+
+    private static final int MAX_EDGE = 256;
+    private static final float QUALITY = 0.75f;
+
+    @Param({"640x480", "4000x3000"})
+    public String dimensions;
+
+    private JpegInputTransformer transformer;
+    private byte[] jpeg;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] size = dimensions.split("x");
+        jpeg = SyntheticJpeg.createWithoutExif(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 42);
+        transformer = new JpegInputTransformer();
+        transformer.setThumbnailMaxEdge(MAX_EDGE);
+        transformer.setThumbnailQuality(QUALITY);
+    }
+
+    @Benchmark
+    public Metacard transform() throws Exception {
+        return transformer.transform(new ByteArrayInputStream(jpeg), "benchmark");
+    }
+
+    @Benchmark
+    public byte[] generateFromStream() throws Exception {
+        JpegHeaderReader headerReader = new JpegHeaderReader(new ByteArrayInputStream(jpeg));
+        return SubsampledThumbnail.generate(headerReader.getSegmentData(), headerReader.getRemainder(), MAX_EDGE, QUALITY, 0);
+    }
+
+    @Benchmark
+    public byte[] generateFromBuffer() throws Exception {
+        JpegHeaderReader headerReader = new JpegHeaderReader(ByteBuffer.wrap(jpeg), false);
+        return SubsampledThumbnail.generate(headerReader.getSegmentData(), headerReader.getRemainderBuffer(), MAX_EDGE, QUALITY, 0);
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Builds synthetic JPEG files for benchmarking.
+ *
+ * Each file has an EXIF APP1 segment containing IFD0 (with a configurable number of extra ASCII tags),
+ * an EXIF sub-IFD with the capture dates, a GPS IFD with a location, and IFD1 with an embedded thumbnail.
+ * An optional APP15 segment pads the header to vary the segment sizes, and the scan data is a real
+ * baseline JPEG of the requested dimensions. Files without any EXIF data can also be built, for the
+ * thumbnail that is decoded from the scan data.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class SyntheticJpeg {
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_OFFSET = 0x8769;
+    private static final int TAG_GPS_OFFSET = 0x8825;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATETIME_DIGITIZED = 0x9004;
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    // Private-use tag numbers for the filler tags, so they never collide with a mapped tag
+    private static final int TAG_FILLER_BASE = 0xC000;
+
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int MAX_SEGMENT_PAYLOAD = 65533;
+
+    private SyntheticJpeg() {
+    }
+
+    /**
+     * Creates a synthetic JPEG.
+     *
+     * @param width width of the main image in pixels
+     * @param height height of the main image in pixels
+     * @param extraTags number of additional ASCII tags to add to IFD0
+     * @param paddingSegmentSize payload size of an APP15 padding segment, or zero for none
+     * @param seed seed for the image content, so the corpus is reproducible
+     */
+    public static byte[] create(int width, int height, int extraTags, int paddingSegmentSize, long seed) throws IOException {
+        byte[] thumbnail = encode(160, 120, seed);
+        byte[] exif = buildExif(extraTags, thumbnail);
+        if (exif.length > MAX_SEGMENT_PAYLOAD) {
+            throw new IllegalArgumentException("too many extra tags, EXIF data does not fit in one APP1 segment");
+        }
+        byte[] image = encode(width, height, seed);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.length + exif.length + paddingSegmentSize + 16);
+        out.write(0xFF);
+        out.write(0xD8);
+        writeSegment(out, 0xE1, exif);
+        if (paddingSegmentSize > 0) {
+            byte[] padding = new byte[paddingSegmentSize];
+            new Random(seed).nextBytes(padding);
+            writeSegment(out, 0xEF, padding);
+        }
+        // Skip the SOI of the encoded image, keep everything after it
+        out.write(image, 2, image.length - 2);
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a synthetic JPEG as ImageIO writes it, with a JFIF header and no EXIF data, so it has no
+     * embedded thumbnail.
+     *
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param seed seed for the image content, so the corpus is reproducible
+     */
+    public static byte[] createWithoutExif(int width, int height, long seed) throws IOException {
+        return encode(width, height, seed);
+    }
+
+    private static byte[] encode(int width, int height, long seed) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), width, height, new Color(random.nextInt(0xFFFFFF))));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        for (int offset = 0; offset < payload.length; offset += MAX_SEGMENT_PAYLOAD) {
+            int length = Math.min(MAX_SEGMENT_PAYLOAD, payload.length - offset);
+            out.write(0xFF);
+            out.write(marker);
+            out.write(((length + 2) >> 8) & 0xFF);
+            out.write((length + 2) & 0xFF);
+            out.write(payload, offset, length);
+        }
+    }
+
+    private static byte[] buildExif(int extraTags, byte[] thumbnail) {
+        Ifd ifd0 = new Ifd();
+        ifd0.ascii(TAG_MAKE, "Frogmouth");
+        ifd0.ascii(TAG_MODEL, "Synthetic");
+        ifd0.ascii(TAG_DATETIME, "2013:06:01 12:34:56");
+        for (int i = 0; i < extraTags; i++) {
+            ifd0.ascii(TAG_FILLER_BASE + i, "filler tag value " + i);
+        }
+        Entry exifPointer = ifd0.add(TAG_EXIF_OFFSET, TYPE_LONG, 1, new byte[4]);
+        Entry gpsPointer = ifd0.add(TAG_GPS_OFFSET, TYPE_LONG, 1, new byte[4]);
+
+        Ifd exifIfd = new Ifd();
+        exifIfd.ascii(TAG_DATETIME_ORIGINAL, "2013:06:01 12:34:56");
+        exifIfd.ascii(TAG_DATETIME_DIGITIZED, "2013:06:01 12:34:56");
+
+        Ifd gpsIfd = new Ifd();
+        gpsIfd.ascii(TAG_GPS_LATITUDE_REF, "S");
+        gpsIfd.add(TAG_GPS_LATITUDE, TYPE_RATIONAL, 3, rationals(35, 1, 18, 1, 1234, 100));
+        gpsIfd.ascii(TAG_GPS_LONGITUDE_REF, "E");
+        gpsIfd.add(TAG_GPS_LONGITUDE, TYPE_RATIONAL, 3, rationals(149, 1, 7, 1, 4321, 100));
+
+        Ifd ifd1 = new Ifd();
+        ifd1.add(TAG_COMPRESSION, TYPE_SHORT, 1, new byte[] {0, 6, 0, 0});
+        Entry thumbnailOffset = ifd1.add(TAG_THUMBNAIL_OFFSET, TYPE_LONG, 1, new byte[4]);
+        ifd1.add(TAG_THUMBNAIL_LENGTH, TYPE_LONG, 1, int32(thumbnail.length));
+
+        int ifd0Offset = TIFF_HEADER_SIZE;
+        int exifOffset = ifd0Offset + ifd0.size();
+        int gpsOffset = exifOffset + exifIfd.size();
+        int ifd1Offset = gpsOffset + gpsIfd.size();
+        int thumbnailStart = ifd1Offset + ifd1.size();
+        exifPointer.mValue = int32(exifOffset);
+        gpsPointer.mValue = int32(gpsOffset);
+        thumbnailOffset.mValue = int32(thumbnailStart);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        tiff.write('M');
+        tiff.write('M');
+        tiff.write(0);
+        tiff.write(0x2A);
+        tiff.write(int32(ifd0Offset), 0, 4);
+        ifd0.write(tiff, ifd0Offset, ifd1Offset);
+        exifIfd.write(tiff, exifOffset, 0);
+        gpsIfd.write(tiff, gpsOffset, 0);
+        ifd1.write(tiff, ifd1Offset, 0);
+        tiff.write(thumbnail, 0, thumbnail.length);
+        byte[] tiffBytes = tiff.toByteArray();
+        out.write(tiffBytes, 0, tiffBytes.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] rationals(int... values) {
+        byte[] bytes = new byte[values.length * 4];
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(int32(values[i]), 0, bytes, i * 4, 4);
+        }
+        return bytes;
+    }
+
+    private static class Entry {
+        final int mTag;
+        final int mType;
+        final int mCount;
+        byte[] mValue;
+
+        Entry(int tag, int type, int count, byte[] value) {
+            mTag = tag;
+            mType = type;
+            mCount = count;
+            mValue = value;
+        }
+    }
+
+    private static class Ifd {
+        private final List<Entry> mEntries = new ArrayList<Entry>();
+
+        Entry add(int tag, int type, int count, byte[] value) {
+            Entry entry = new Entry(tag, type, count, value);
+            mEntries.add(entry);
+            return entry;
+        }
+
+        void ascii(int tag, String value) {
+            byte[] chars = value.getBytes();
+            byte[] bytes = new byte[chars.length + 1];
+            System.arraycopy(chars, 0, bytes, 0, chars.length);
+            add(tag, TYPE_ASCII, bytes.length, bytes);
+        }
+
+        int size() {
+            int size = 2 + (12 * mEntries.size()) + 4;
+            for (Entry entry : mEntries) {
+                size += outOfLineSize(entry);
+            }
+            return size;
+        }
+
+        void write(ByteArrayOutputStream out, int offset, int nextIfdOffset) {
+            int dataOffset = offset + 2 + (12 * mEntries.size()) + 4;
+            out.write(mEntries.size() >> 8);
+            out.write(mEntries.size());
+            for (Entry entry : mEntries) {
+                out.write(entry.mTag >> 8);
+                out.write(entry.mTag);
+                out.write(entry.mType >> 8);
+                out.write(entry.mType);
+                out.write(int32(entry.mCount), 0, 4);
+                if (entry.mValue.length <= 4) {
+                    byte[] inline = new byte[4];
+                    System.arraycopy(entry.mValue, 0, inline, 0, entry.mValue.length);
+                    out.write(inline, 0, 4);
+                } else {
+                    out.write(int32(dataOffset), 0, 4);
+                    dataOffset += outOfLineSize(entry);
+                }
+            }
+            out.write(int32(nextIfdOffset), 0, 4);
+            for (Entry entry : mEntries) {
+                if (entry.mValue.length > 4) {
+                    out.write(entry.mValue, 0, entry.mValue.length);
+                    if ((entry.mValue.length % 2) != 0) {
+                        out.write(0);
+                    }
+                }
+            }
+        }
+
+        private static int outOfLineSize(Entry entry) {
+            if (entry.mValue.length <= 4) {
+                return 0;
+            }
+            return entry.mValue.length + (entry.mValue.length % 2);
+        }
+    }
+}
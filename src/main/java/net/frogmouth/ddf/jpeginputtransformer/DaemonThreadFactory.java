@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so an executor that is never shut down does not keep the JVM running.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String mPrefix;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /**
+     * @param prefix the start of each thread name, which is followed by a dash and a number
+     */
+    DaemonThreadFactory(String prefix) {
+        mPrefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, mPrefix + "-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.nio.charset.Charset;
+
+import com.drew.imaging.jpeg.JpegSegmentData;
+
+/**
+ * Finds the XMP packet embedded in the APP1 segment of a JPEG.
+ *
+ * The packet is kept as the text found in the file, so that when the XMP mappings have nothing to add it
+ * can become the metacard metadata as it is. Only the standard packet is used: extended XMP, which is
+ * split over further APP1 segments with a different identifier, is ignored.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class EmbeddedXmp {
+
+    private static final byte MARKER_APP1 = (byte) 0xE1;
+
+    /**
+     * The identifier at the start of an APP1 segment holding an XMP packet, including its terminating zero.
+     */
+    private static final byte[] XMP_IDENTIFIER = {'h', 't', 't', 'p', ':', '/', '/', 'n', 's', '.', 'a', 'd', 'o', 'b', 'e', '.', 'c',
+        'o', 'm', '/', 'x', 'a', 'p', '/', '1', '.', '0', '/', 0};
+
+    // XMP in JPEG is always UTF-8
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EmbeddedXmp() {
+    }
+
+    /**
+     * Whether a segment is an APP1 segment holding an XMP packet.
+     *
+     * @param head the first bytes of the segment payload
+     * @param headLength the number of bytes in head
+     */
+    static boolean isXmpSegment(int marker, byte[] head, int headLength) {
+        if (((byte) marker != MARKER_APP1) || (headLength < XMP_IDENTIFIER.length)) {
+            return false;
+        }
+        for (int i = 0; i < XMP_IDENTIFIER.length; i++) {
+            if (head[i] != XMP_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The text of the first XMP packet in the segments, or null if there is none.
+     */
+    static String findPacket(JpegSegmentData segments) {
+        for (byte[] segment : segments.getSegments(MARKER_APP1)) {
+            if (isXmpSegment(MARKER_APP1, segment, segment.length)) {
+                return new String(segment, XMP_IDENTIFIER.length, segment.length - XMP_IDENTIFIER.length, UTF_8);
+            }
+        }
+        return null;
+    }
+}
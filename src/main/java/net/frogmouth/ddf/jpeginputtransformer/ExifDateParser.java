@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+
+/**
+ * Parses the EXIF date/time tags of one image.
+ *
+ * EXIF dates have the fixed layout "yyyy:MM:dd HH:mm:ss", so the fields are read straight out of the tag
+ * value, without going through {@link java.text.SimpleDateFormat}. When the image has the matching
+ * OffsetTime tag (EXIF 2.31) the date is taken to be in that offset, otherwise in the default time zone
+ * as before, and the matching SubSecTime tag supplies the milliseconds. Both of those tags live in the
+ * SubIFD, whichever directory the date itself is in.
+ *
+ * A value that does not have the fixed layout is handed to {@link Directory#getDate(int)}, which knows
+ * the less common variants. Each date is parsed once, then served from a small per-directory cache, so
+ * the transform and the XMP mappings can both ask for it. An instance is used by one thread.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class ExifDateParser {
+
+    static final int TAG_OFFSET_TIME = 0x9010;
+    static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    static final int TAG_OFFSET_TIME_DIGITIZED = 0x9012;
+    static final int TAG_SUBSEC_TIME = 0x9290;
+    static final int TAG_SUBSEC_TIME_ORIGINAL = 0x9291;
+    static final int TAG_SUBSEC_TIME_DIGITIZED = 0x9292;
+
+    private static final int CACHE_SIZE = 8;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int NO_OFFSET = Integer.MIN_VALUE;
+
+    private final ExifSubIFDDirectory mSubIFD;
+    private TimeZone mDefaultZone;
+
+    private final Directory[] mCachedDirectories = new Directory[CACHE_SIZE];
+    private final int[] mCachedTags = new int[CACHE_SIZE];
+    private final Date[] mCachedDates = new Date[CACHE_SIZE];
+    private int mCacheCount = 0;
+
+    ExifDateParser(Metadata metadata) {
+        mSubIFD = metadata.getDirectory(ExifSubIFDDirectory.class);
+    }
+
+    /**
+     * The date in a tag, or null if the tag is missing or does not hold a date.
+     */
+    Date getDate(Directory directory, int tag) {
+        for (int i = 0; i < mCacheCount; i++) {
+            if ((mCachedDirectories[i] == directory) && (mCachedTags[i] == tag)) {
+                return mCachedDates[i];
+            }
+        }
+        Date date = parse(directory, tag);
+        if (mCacheCount < CACHE_SIZE) {
+            mCachedDirectories[mCacheCount] = directory;
+            mCachedTags[mCacheCount] = tag;
+            mCachedDates[mCacheCount] = date;
+            mCacheCount++;
+        }
+        return date;
+    }
+
+    private Date parse(Directory directory, int tag) {
+        Object value = directory.getObject(tag);
+        if (value == null) {
+            return null;
+        }
+        CharSequence text = asText(value);
+        long local = (text != null) ? parseLocalMillis(text) : Long.MIN_VALUE;
+        if (local == Long.MIN_VALUE) {
+            return directory.getDate(tag);
+        }
+        int offsetMinutes = parseOffsetMinutes(asText(subIFDValue(offsetTagFor(directory, tag))));
+        long utc;
+        if (offsetMinutes != NO_OFFSET) {
+            utc = local - (offsetMinutes * 60L * 1000);
+        } else {
+            utc = toUtcInDefaultZone(local);
+        }
+        return new Date(utc + parseSubSecondMillis(asText(subIFDValue(subSecTagFor(directory, tag)))));
+    }
+
+    private Object subIFDValue(int tag) {
+        if ((tag < 0) || (mSubIFD == null)) {
+            return null;
+        }
+        return mSubIFD.getObject(tag);
+    }
+
+    private static int offsetTagFor(Directory directory, int tag) {
+        if ((directory instanceof ExifIFD0Directory) && (tag == ExifIFD0Directory.TAG_DATETIME)) {
+            return TAG_OFFSET_TIME;
+        }
+        if (directory instanceof ExifSubIFDDirectory) {
+            if (tag == ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL) {
+                return TAG_OFFSET_TIME_ORIGINAL;
+            } else if (tag == ExifSubIFDDirectory.TAG_DATETIME_DIGITIZED) {
+                return TAG_OFFSET_TIME_DIGITIZED;
+            }
+        }
+        return -1;
+    }
+
+    private static int subSecTagFor(Directory directory, int tag) {
+        switch (offsetTagFor(directory, tag)) {
+            case TAG_OFFSET_TIME:
+                return TAG_SUBSEC_TIME;
+            case TAG_OFFSET_TIME_ORIGINAL:
+                return TAG_SUBSEC_TIME_ORIGINAL;
+            case TAG_OFFSET_TIME_DIGITIZED:
+                return TAG_SUBSEC_TIME_DIGITIZED;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * ASCII tags normally come back as strings, but some writers leave them as raw bytes.
+     */
+    private static CharSequence asText(Object value) {
+        if (value instanceof CharSequence) {
+            return (CharSequence) value;
+        }
+        if (value instanceof byte[]) {
+            return new AsciiSequence((byte[]) value);
+        }
+        return null;
+    }
+
+    /**
+     * Reads "yyyy:MM:dd HH:mm:ss" as milliseconds since the epoch, as if the local time were UTC.
+     *
+     * @return the time, or Long.MIN_VALUE if the text does not have that layout or is all blank or zero
+     */
+    static long parseLocalMillis(CharSequence text) {
+        if ((text.length() < 19) || (text.charAt(4) != ':') || (text.charAt(7) != ':') || (text.charAt(10) != ' ')
+                || (text.charAt(13) != ':') || (text.charAt(16) != ':')) {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || (day > 31) || (hour < 0) || (hour > 23)
+                || (minute < 0) || (minute > 59) || (second < 0) || (second > 59)) {
+            return Long.MIN_VALUE;
+        }
+        long seconds = (((hour * 60L) + minute) * 60L) + second;
+        return (daysFromCivil(year, month, day) * MILLIS_PER_DAY) + (seconds * 1000);
+    }
+
+    /**
+     * Reads an EXIF offset such as "+09:30" or "-05:00".
+     *
+     * @return the offset in minutes, or NO_OFFSET if there is none
+     */
+    static int parseOffsetMinutes(CharSequence text) {
+        if ((text == null) || (text.length() < 6) || (text.charAt(3) != ':')) {
+            return NO_OFFSET;
+        }
+        char sign = text.charAt(0);
+        int hours = digits(text, 1, 2);
+        int minutes = digits(text, 4, 2);
+        if (((sign != '+') && (sign != '-')) || (hours < 0) || (hours > 14) || (minutes < 0) || (minutes > 59)) {
+            return NO_OFFSET;
+        }
+        int offset = (hours * 60) + minutes;
+        return (sign == '-') ? -offset : offset;
+    }
+
+    /**
+     * Reads the leading digits of an EXIF SubSecTime, which is a decimal fraction of a second.
+     */
+    static int parseSubSecondMillis(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int millis = 0;
+        int scale = 100;
+        for (int i = 0; (i < text.length()) && (scale > 0); i++) {
+            char c = text.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                break;
+            }
+            millis += (c - '0') * scale;
+            scale /= 10;
+        }
+        return millis;
+    }
+
+    private long toUtcInDefaultZone(long local) {
+        if (mDefaultZone == null) {
+            mDefaultZone = TimeZone.getDefault();
+        }
+        // Two passes, so a local time near a daylight saving transition picks up the offset in effect then
+        long guess = local - mDefaultZone.getOffset(local);
+        return local - mDefaultZone.getOffset(guess);
+    }
+
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                return -1;
+            }
+            value = (value * 10) + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days from 1970-01-01 to a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = (month <= 2) ? year - 1 : year;
+        int era = ((y >= 0) ? y : y - 399) / 400;
+        int yearOfEra = y - (era * 400);
+        int dayOfYear = (((153 * (month + ((month > 2) ? -3 : 9))) + 2) / 5) + day - 1;
+        int dayOfEra = (yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) + dayOfYear;
+        return (era * 146097L) + dayOfEra - 719468;
+    }
+
+    /**
+     * Views ASCII bytes as characters, without decoding them into a string.
+     */
+    private static final class AsciiSequence implements CharSequence {
+        private final byte[] mBytes;
+
+        AsciiSequence(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        public int length() {
+            return mBytes.length;
+        }
+
+        public char charAt(int index) {
+            return (char) (mBytes[index] & 0xFF);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mBytes);
+        }
+    }
+}
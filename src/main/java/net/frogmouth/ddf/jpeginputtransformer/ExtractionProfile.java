@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The set of extraction stages and XMP mapping tables a transform runs.
+ *
+ * There are three named profiles:
+ * <ul>
+ * <li>minimal: the IFD0 and SubIFD dates and the GPS location only</li>
+ * <li>standard: every stage, but no thumbnail is generated for images without an EXIF thumbnail</li>
+ * <li>full: everything, and every header segment is kept (the default)</li>
+ * </ul>
+ * A profile is written as a name, optionally followed by features to add or remove, for example
+ * {@code "minimal +iptc"} or {@code "standard, -xmp.iptc"}. The feature names are those of {@link Feature}.
+ * The perceptual hash is taken from the thumbnail, so it is only computed when the thumbnail is enabled too.
+ * The mpf feature reads the image list of Multi-Picture (MPO) files.
+ *
+ * The profile is also the {@link JpegHeaderReader.SegmentFilter} for the transform. Unless every segment is
+ * kept, only the segments the enabled features read are stored, so the rest are never parsed.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public final class ExtractionProfile implements JpegHeaderReader.SegmentFilter {
+
+    /**
+     * A stage of the transform, or an XMP mapping table.
+     */
+    public enum Feature {
+        IFD0("ifd0"),
+        SUB_IFD("subifd"),
+        GPS("gps"),
+        IPTC("iptc"),
+        THUMBNAIL("thumbnail"),
+        GENERATED_THUMBNAIL("generatedthumbnail"),
+        PERCEPTUAL_HASH("perceptualhash"),
+        MPF("mpf"),
+        XMP("xmp"),
+        XMP_IFD0("xmp.ifd0"),
+        XMP_SUB_IFD("xmp.subifd"),
+        XMP_GPS("xmp.gps"),
+        XMP_IPTC("xmp.iptc");
+
+        private final String mName;
+
+        Feature(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        static Feature forName(String name) {
+            for (Feature feature : values()) {
+                if (feature.mName.equalsIgnoreCase(name)) {
+                    return feature;
+                }
+            }
+            throw new IllegalArgumentException("Unknown extraction feature: " + name);
+        }
+    }
+
+    public static final ExtractionProfile MINIMAL = new ExtractionProfile("minimal", EnumSet.of(Feature.IFD0, Feature.SUB_IFD, Feature.GPS), false);
+
+    public static final ExtractionProfile STANDARD = new ExtractionProfile("standard", EnumSet.complementOf(EnumSet.of(Feature.GENERATED_THUMBNAIL)), false);
+
+    public static final ExtractionProfile FULL = new ExtractionProfile("full", EnumSet.allOf(Feature.class), true);
+
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP13 = 0xED;
+    private static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private final String mName;
+    private final EnumSet<Feature> mFeatures;
+    private final boolean mKeepAllSegments;
+    private final boolean mNeedsExif;
+    private final boolean mNeedsIptc;
+
+    private ExtractionProfile(String name, EnumSet<Feature> features, boolean keepAllSegments) {
+        mName = name;
+        mFeatures = features;
+        mKeepAllSegments = keepAllSegments;
+        mNeedsExif = features.contains(Feature.IFD0) || features.contains(Feature.SUB_IFD) || features.contains(Feature.GPS)
+                || features.contains(Feature.THUMBNAIL) || (features.contains(Feature.XMP)
+                && (features.contains(Feature.XMP_IFD0) || features.contains(Feature.XMP_SUB_IFD) || features.contains(Feature.XMP_GPS)));
+        mNeedsIptc = features.contains(Feature.IPTC) || (features.contains(Feature.XMP) && features.contains(Feature.XMP_IPTC));
+    }
+
+    /**
+     * Parses a profile definition.
+     *
+     * @param definition a profile name, followed by any number of "+feature" or "-feature" adjustments
+     * @throws IllegalArgumentException if the profile or a feature is unknown
+     */
+    public static ExtractionProfile parse(String definition) {
+        String[] tokens = definition.trim().split("[\\s,]+");
+        ExtractionProfile base = forName(tokens[0]);
+        if (tokens.length == 1) {
+            return base;
+        }
+        EnumSet<Feature> features = EnumSet.copyOf(base.mFeatures);
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (token.startsWith("+")) {
+                features.add(Feature.forName(token.substring(1)));
+            } else if (token.startsWith("-")) {
+                features.remove(Feature.forName(token.substring(1)));
+            } else {
+                throw new IllegalArgumentException("Expected +feature or -feature in extraction profile: " + token);
+            }
+        }
+        return new ExtractionProfile(definition.trim(), features, base.mKeepAllSegments);
+    }
+
+    private static ExtractionProfile forName(String name) {
+        if (MINIMAL.mName.equalsIgnoreCase(name)) {
+            return MINIMAL;
+        } else if (STANDARD.mName.equalsIgnoreCase(name)) {
+            return STANDARD;
+        } else if (FULL.mName.equalsIgnoreCase(name)) {
+            return FULL;
+        }
+        throw new IllegalArgumentException("Unknown extraction profile: " + name);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isEnabled(Feature feature) {
+        return mFeatures.contains(feature);
+    }
+
+    public Set<Feature> getFeatures() {
+        return EnumSet.copyOf(mFeatures);
+    }
+
+    /**
+     * Whether the profile keeps every header segment, in which case there is no need to filter them.
+     */
+    public boolean keepsAllSegments() {
+        return mKeepAllSegments;
+    }
+
+    /**
+     * Keeps the EXIF APP1 segment, the IPTC APP13 segment, the MPF APP2 segment and the segments needed to
+     * decode the image, each only if an enabled feature reads it.
+     */
+    @Override
+    public boolean accept(int marker, byte[] head, int headLength) {
+        if (mKeepAllSegments) {
+            return true;
+        }
+        if (marker == MARKER_APP1) {
+            // APP1 also carries XMP packets, which no stage reads
+            return mNeedsExif && startsWith(head, headLength, EXIF_IDENTIFIER);
+        }
+        if (marker == MARKER_APP13) {
+            return mNeedsIptc;
+        }
+        if (isEnabled(Feature.MPF) && MpfIndex.isMpfSegment(marker, head, headLength)) {
+            return true;
+        }
+        return isEnabled(Feature.THUMBNAIL) && isEnabled(Feature.GENERATED_THUMBNAIL) && SubsampledThumbnail.isDecoderSegment(marker);
+    }
+
+    /**
+     * A filter that also keeps the APP1 segment holding an embedded XMP packet, if the profile builds XMP.
+     */
+    JpegHeaderReader.SegmentFilter withEmbeddedXmp() {
+        if (mKeepAllSegments || !isEnabled(Feature.XMP)) {
+            return this;
+        }
+        return new JpegHeaderReader.SegmentFilter() {
+            @Override
+            public boolean accept(int marker, byte[] head, int headLength) {
+                return EmbeddedXmp.isXmpSegment(marker, head, headLength) || ExtractionProfile.this.accept(marker, head, headLength);
+            }
+        };
+    }
+
+    private static boolean startsWith(byte[] head, int headLength, byte[] prefix) {
+        if (headLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (head[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " " + mFeatures;
+    }
+}
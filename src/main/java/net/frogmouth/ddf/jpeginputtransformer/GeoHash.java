@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+/**
+ * Geohash encoding of a WGS84 position.
+ *
+ * A geohash interleaves the bits of successive halvings of the longitude and latitude ranges and writes
+ * them five at a time in base 32. Each extra character narrows the cell, and every cell is a string
+ * prefix of the cells inside it, so a spatial lookup becomes a prefix or range lookup on the hash.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class GeoHash {
+
+    /**
+     * 12 characters is 60 bits, a cell of a few centimetres, which is past the precision of GPS.
+     */
+    static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private GeoHash() {
+    }
+
+    /**
+     * @param latitude degrees, from -90 to 90
+     * @param longitude degrees, from -180 to 180
+     * @param precision number of characters, from 1 to {@link #MAX_PRECISION}
+     */
+    static String encode(double latitude, double longitude, int precision) {
+        if ((precision < 1) || (precision > MAX_PRECISION)) {
+            throw new IllegalArgumentException("precision must be between 1 and " + MAX_PRECISION);
+        }
+        if (Double.isNaN(latitude) || (latitude < -90.0) || (latitude > 90.0) || Double.isNaN(longitude) || (longitude < -180.0) || (longitude > 180.0)) {
+            throw new IllegalArgumentException("not a valid position: " + latitude + "," + longitude);
+        }
+        char[] hash = new char[precision];
+        double minLatitude = -90.0;
+        double maxLatitude = 90.0;
+        double minLongitude = -180.0;
+        double maxLongitude = 180.0;
+        boolean isLongitude = true;
+        for (int i = 0; i < precision; i++) {
+            int index = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                index <<= 1;
+                if (isLongitude) {
+                    double middle = (minLongitude + maxLongitude) / 2;
+                    if (longitude >= middle) {
+                        index |= 1;
+                        minLongitude = middle;
+                    } else {
+                        maxLongitude = middle;
+                    }
+                } else {
+                    double middle = (minLatitude + maxLatitude) / 2;
+                    if (latitude >= middle) {
+                        index |= 1;
+                        minLatitude = middle;
+                    } else {
+                        maxLatitude = middle;
+                    }
+                }
+                isLongitude = !isLongitude;
+            }
+            hash[i] = BASE32[index];
+        }
+        return new String(hash);
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ddf.catalog.data.Metacard;
+import ddf.catalog.transform.CatalogTransformerException;
+import ddf.catalog.transform.InputTransformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an {@link InputTransformer} over a batch of JPEG images on a pool of worker threads.
+ *
+ * Results are returned as a lazy {@link Iterator}. At most {@code maxInFlight} images are being
+ * transformed (or waiting for the caller to collect their result) at any time, and the input is only
+ * pulled as results are consumed, so a slow consumer applies backpressure all the way back to the source.
+ * A failure to transform one image is reported in its {@link Result} and does not affect the rest of
+ * the batch. A failure to close an input after it has been read is only logged. The workers are daemon
+ * threads, so a batch transformer that is never shut down does not keep the JVM running.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class JpegBatchTransformer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JpegBatchTransformer.class);
+
+    private final InputTransformer mTransformer;
+    private final ExecutorService mExecutor;
+    private final int mMaxInFlight;
+
+    /**
+     * The outcome of transforming one item of a batch.
+     */
+    public static class Result {
+        private final long mIndex;
+        private final Metacard mMetacard;
+        private final Exception mException;
+
+        Result(long index, Metacard metacard, Exception exception) {
+            mIndex = index;
+            mMetacard = metacard;
+            mException = exception;
+        }
+
+        /**
+         * Position of the item in the input, starting at zero.
+         */
+        public long getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * The transformed metacard, or null if the transform failed.
+         */
+        public Metacard getMetacard() {
+            return mMetacard;
+        }
+
+        /**
+         * The reason the transform failed, or null if it succeeded.
+         */
+        public Exception getException() {
+            return mException;
+        }
+
+        public boolean isSuccess() {
+            return mException == null;
+        }
+    }
+
+    /**
+     * Creates a batch transformer with its own worker pool.
+     *
+     * @param transformer the transformer to apply to each item
+     * @param threads number of worker threads
+     * @param maxInFlight maximum number of items submitted but not yet returned to the caller
+     */
+    public JpegBatchTransformer(InputTransformer transformer, int threads, int maxInFlight) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        mTransformer = transformer;
+        mExecutor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("jpeg-batch-transformer"));
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Creates a batch transformer using one worker per available processor.
+     */
+    public JpegBatchTransformer(InputTransformer transformer) {
+        this(transformer, Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Transforms a batch of streams. Each stream is closed once it has been transformed.
+     *
+     * @param inputs the streams to transform, pulled lazily as results are consumed
+     * @param ordered true to return results in input order, false to return them as they complete
+     */
+    public Iterator<Result> transform(Iterable<? extends InputStream> inputs, boolean ordered) {
+        final Iterator<? extends InputStream> iterator = inputs.iterator();
+        return new ResultIterator(new Iterator<Callable<Metacard>>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Callable<Metacard> next() {
+                return new StreamTask(iterator.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, ordered);
+    }
+
+    /**
+     * Transforms a batch of files. Each file is only opened when a worker picks it up, so the number of
+     * open files is bounded by the number of worker threads.
+     *
+     * @param files the files to transform, pulled lazily as results are consumed
+     * @param ordered true to return results in input order, false to return them as they complete
+     */
+    public Iterator<Result> transformFiles(Iterable<File> files, boolean ordered) {
+        final Iterator<File> iterator = files.iterator();
+        return new ResultIterator(new Iterator<Callable<Metacard>>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Callable<Metacard> next() {
+                return new FileTask(iterator.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, ordered);
+    }
+
+    /**
+     * Stops the worker pool. Items already submitted are allowed to finish.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private class StreamTask implements Callable<Metacard> {
+        private final InputStream mInput;
+
+        StreamTask(InputStream input) {
+            mInput = input;
+        }
+
+        public Metacard call() throws IOException, CatalogTransformerException {
+            try {
+                return mTransformer.transform(mInput);
+            } finally {
+                closeQuietly(mInput);
+            }
+        }
+    }
+
+    private class FileTask implements Callable<Metacard> {
+        private final File mFile;
+
+        FileTask(File file) {
+            mFile = file;
+        }
+
+        public Metacard call() throws IOException, CatalogTransformerException {
+            if (mTransformer instanceof JpegInputTransformer) {
+                return ((JpegInputTransformer) mTransformer).transformFile(mFile);
+            }
+            InputStream input = new FileInputStream(mFile);
+            try {
+                return mTransformer.transform(input);
+            } finally {
+                closeQuietly(input);
+            }
+        }
+    }
+
+    /**
+     * Closes an input that has been transformed, so a failure to close it neither loses the metacard nor
+     * hides why the transform failed.
+     */
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close a batch input after transforming it", e);
+        }
+    }
+
+    /**
+     * Keeps up to mMaxInFlight tasks submitted, topping the window up each time a result is taken.
+     * Only unordered results go through a completion service, whose queue would otherwise hold on to
+     * every completed result that is collected in input order instead.
+     */
+    private class ResultIterator implements Iterator<Result> {
+        private final Iterator<Callable<Metacard>> mTasks;
+        private final boolean mOrdered;
+        private final CompletionService<Metacard> mCompletionService;
+        private final LinkedList<IndexedFuture> mPending = new LinkedList<IndexedFuture>();
+        private long mNextIndex = 0;
+
+        ResultIterator(Iterator<Callable<Metacard>> tasks, boolean ordered) {
+            mTasks = tasks;
+            mOrdered = ordered;
+            mCompletionService = ordered ? null : new ExecutorCompletionService<Metacard>(mExecutor);
+        }
+
+        public boolean hasNext() {
+            fill();
+            return !mPending.isEmpty();
+        }
+
+        public Result next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexedFuture pending;
+            if (mOrdered) {
+                pending = mPending.removeFirst();
+            } else {
+                pending = removeCompleted();
+            }
+            return pending.toResult();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill() {
+            while ((mPending.size() < mMaxInFlight) && mTasks.hasNext()) {
+                Callable<Metacard> task = mTasks.next();
+                Future<Metacard> future = mOrdered ? mExecutor.submit(task) : mCompletionService.submit(task);
+                mPending.add(new IndexedFuture(mNextIndex++, future));
+            }
+        }
+
+        private IndexedFuture removeCompleted() {
+            Future<Metacard> completed;
+            try {
+                completed = mCompletionService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return mPending.removeFirst();
+            }
+            for (Iterator<IndexedFuture> it = mPending.iterator(); it.hasNext();) {
+                IndexedFuture pending = it.next();
+                if (pending.mFuture == completed) {
+                    it.remove();
+                    return pending;
+                }
+            }
+            throw new IllegalStateException("completed task was not pending");
+        }
+    }
+
+    private static class IndexedFuture {
+        private final long mIndex;
+        private final Future<Metacard> mFuture;
+
+        IndexedFuture(long index, Future<Metacard> future) {
+            mIndex = index;
+            mFuture = future;
+        }
+
+        Result toResult() {
+            try {
+                return new Result(mIndex, mFuture.get(), null);
+            } catch (ExecutionException e) {
+                LOGGER.debug("Batch item {} failed to transform", mIndex);
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    return new Result(mIndex, null, (Exception) cause);
+                }
+                return new Result(mIndex, null, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mFuture.cancel(true);
+                return new Result(mIndex, null, e);
+            }
+        }
+    }
+}
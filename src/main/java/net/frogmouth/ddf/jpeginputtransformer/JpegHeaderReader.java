@@ -0,0 +1,517 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.imaging.jpeg.JpegSegmentData;
+
+/**
+ * Marker-aware reader for the header of a JPEG stream.
+ *
+ * Reads the SOI marker and every marker segment up to (but not including) the first SOS marker, and
+ * stops there. All of the metadata we care about (EXIF, IPTC, GPS, the EXIF thumbnail) lives in the
+ * APPn segments in front of the scan, so the entropy-coded image data is never pulled through the JVM.
+ * The stream is read without any read-ahead, so the unread remainder (starting at the SOS marker) can be
+ * handed back to the caller via {@link #getRemainder()}.
+ *
+ * The header can also be read from a {@link ByteBuffer}, typically a memory-mapped file. The markers are
+ * then walked in place, and only the payloads of the header segments are copied out.
+ *
+ * An optional {@link SegmentFilter} sees the start of each segment and decides whether it is kept.
+ * Segments that are not kept are skipped without being copied, so the metadata readers never see them.
+ * A {@link ParseGuard} bounds the bytes read, the size of each segment and the directories in it.
+ * Kept or not, every segment is recorded in a {@link JpegSegmentIndex} with its offset.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class JpegHeaderReader {
+
+    static final int MARKER_PREFIX = 0xFF;
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_TEM = 0x01;
+    static final int MARKER_RST0 = 0xD0;
+    static final int MARKER_RST7 = 0xD7;
+
+    /**
+     * Number of payload bytes a {@link SegmentFilter} gets to look at, enough for the usual APPn identifiers.
+     */
+    static final int FILTER_HEAD_LENGTH = 32;
+
+    /**
+     * Decides which header segments are kept.
+     */
+    public interface SegmentFilter {
+        /**
+         * @param marker the segment marker, such as 0xE1 for APP1
+         * @param head the start of the segment payload
+         * @param headLength the number of valid bytes in head, at most {@link JpegHeaderReader#FILTER_HEAD_LENGTH}
+         * @return true to keep the segment, false to skip over it
+         */
+        boolean accept(int marker, byte[] head, int headLength);
+    }
+
+    private final InputStream mInput;
+    private final ByteBuffer mBuffer;
+    private final SegmentFilter mFilter;
+    private final ParseGuard mGuard;
+    private final byte[] mHead;
+    private final JpegSegmentData mSegmentData = new JpegSegmentData();
+    private final JpegSegmentIndex mSegmentIndex = new JpegSegmentIndex();
+    private long mBytesRead = 0;
+    private boolean mReachedScan = false;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final boolean mHashing;
+    private long mHash1 = FNV_OFFSET_BASIS;
+    private long mHash2 = 0;
+
+    /**
+     * Reads the JPEG header segments from the input stream.
+     *
+     * @param input the stream to read, positioned at the SOI marker
+     * @throws JpegProcessingException if the stream is not a JPEG, or ends before the first scan
+     * @throws IOException if reading from the stream fails
+     */
+    public JpegHeaderReader(InputStream input) throws JpegProcessingException, IOException {
+        this(input, false);
+    }
+
+    /**
+     * Reads the JPEG header segments from the input stream, optionally hashing them as they are read.
+     *
+     * @param input the stream to read, positioned at the SOI marker
+     * @param hashing true to compute {@link #getHeaderHash()}
+     * @throws JpegProcessingException if the stream is not a JPEG, or ends before the first scan
+     * @throws IOException if reading from the stream fails
+     */
+    public JpegHeaderReader(InputStream input, boolean hashing) throws JpegProcessingException, IOException {
+        this(input, hashing, null);
+    }
+
+    /**
+     * Reads the JPEG header segments from the input stream, keeping only the segments accepted by the filter.
+     *
+     * @param input the stream to read, positioned at the SOI marker
+     * @param hashing true to compute {@link #getHeaderHash()}
+     * @param filter the filter to apply, or null to keep every segment
+     * @throws JpegProcessingException if the stream is not a JPEG, or ends before the first scan
+     * @throws IOException if reading from the stream fails
+     */
+    public JpegHeaderReader(InputStream input, boolean hashing, SegmentFilter filter) throws JpegProcessingException, IOException {
+        this(input, hashing, filter, null);
+    }
+
+    /**
+     * Reads the JPEG header segments from the input stream within a resource budget.
+     *
+     * @param guard the budget to enforce, or null for none
+     * @throws ParseLimitExceededException if the header exceeds a limit of a strict guard
+     */
+    JpegHeaderReader(InputStream input, boolean hashing, SegmentFilter filter, ParseGuard guard) throws JpegProcessingException, IOException {
+        mInput = input;
+        mBuffer = null;
+        mHashing = hashing;
+        mFilter = filter;
+        mGuard = guard;
+        mHead = (filter != null) ? new byte[FILTER_HEAD_LENGTH] : null;
+        readHeader();
+    }
+
+    /**
+     * Reads the JPEG header segments from a buffer, optionally hashing them as they are read.
+     *
+     * @param buffer the buffer to read, positioned at the SOI marker. Its position is advanced past the header.
+     * @param hashing true to compute {@link #getHeaderHash()}
+     * @throws JpegProcessingException if the buffer is not a JPEG, or ends before the first scan
+     */
+    public JpegHeaderReader(ByteBuffer buffer, boolean hashing) throws JpegProcessingException {
+        this(buffer, hashing, null);
+    }
+
+    /**
+     * Reads the JPEG header segments from a buffer, keeping only the segments accepted by the filter.
+     *
+     * @param buffer the buffer to read, positioned at the SOI marker. Its position is advanced past the header.
+     * @param hashing true to compute {@link #getHeaderHash()}
+     * @param filter the filter to apply, or null to keep every segment
+     * @throws JpegProcessingException if the buffer is not a JPEG, or ends before the first scan
+     */
+    public JpegHeaderReader(ByteBuffer buffer, boolean hashing, SegmentFilter filter) throws JpegProcessingException {
+        this(buffer, hashing, filter, null);
+    }
+
+    /**
+     * Reads the JPEG header segments from a buffer within a resource budget.
+     *
+     * @param guard the budget to enforce, or null for none
+     * @throws ParseLimitExceededException if the header exceeds a limit of a strict guard
+     */
+    JpegHeaderReader(ByteBuffer buffer, boolean hashing, SegmentFilter filter, ParseGuard guard) throws JpegProcessingException {
+        mInput = null;
+        mBuffer = buffer;
+        mHashing = hashing;
+        mFilter = filter;
+        mGuard = guard;
+        mHead = (filter != null) ? new byte[FILTER_HEAD_LENGTH] : null;
+        try {
+            readHeader();
+        } catch (IOException e) {
+            // Reading from a buffer does no I/O
+            throw new JpegProcessingException(e);
+        }
+    }
+
+    /**
+     * The header segments that were read, suitable for passing to the metadata-extractor readers.
+     */
+    public JpegSegmentData getSegmentData() {
+        return mSegmentData;
+    }
+
+    /**
+     * Where each header segment is, including the segments that were skipped.
+     */
+    public JpegSegmentIndex getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    /**
+     * Number of bytes consumed from the underlying stream.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * A 128 bit hash of every header byte that was read, or null if hashing was not requested.
+     *
+     * Two independent 64 bit lanes (FNV-1a and a multiply-rotate hash) are combined with the header
+     * length, which makes accidental collisions between different headers vanishingly unlikely. This is
+     * not a cryptographic hash.
+     */
+    public HeaderHash getHeaderHash() {
+        if (!mHashing) {
+            return null;
+        }
+        return new HeaderHash(mHash1, mHash2, mBytesRead);
+    }
+
+    /**
+     * The same hash over a whole array, for keying other content (such as thumbnails) by what it holds.
+     */
+    static HeaderHash hashOf(byte[] bytes) {
+        long hash1 = FNV_OFFSET_BASIS;
+        long hash2 = 0;
+        for (byte b : bytes) {
+            int value = b & 0xFF;
+            hash1 = (hash1 ^ value) * FNV_PRIME;
+            hash2 = Long.rotateLeft((hash2 + value) * GOLDEN_GAMMA, 31);
+        }
+        return new HeaderHash(hash1, hash2, bytes.length);
+    }
+
+    /**
+     * Whether the header was terminated by an SOS marker (as opposed to an EOI marker).
+     */
+    public boolean reachedScan() {
+        return mReachedScan;
+    }
+
+    /**
+     * The part of the stream that was not read, starting at the SOS marker.
+     *
+     * The SOS marker bytes are replayed in front of the underlying stream, so the result is the exact
+     * remainder of the original JPEG. Nothing beyond the marker has been consumed.
+     */
+    public InputStream getRemainder() {
+        if (mBuffer != null) {
+            return new ByteBufferInputStream(getRemainderBuffer());
+        }
+        if (!mReachedScan) {
+            return mInput;
+        }
+        byte[] marker = new byte[] {(byte) MARKER_PREFIX, (byte) MARKER_SOS};
+        return new SequenceInputStream(new ByteArrayInputStream(marker), mInput);
+    }
+
+    /**
+     * The part of the buffer that was not read, starting at the SOS marker, or null if the header was read
+     * from a stream. The buffer is shared, not copied.
+     */
+    ByteBuffer getRemainderBuffer() {
+        if (mBuffer == null) {
+            return null;
+        }
+        ByteBuffer remainder = mBuffer.duplicate();
+        if (mReachedScan) {
+            remainder.position(remainder.position() - 2);
+        }
+        return remainder;
+    }
+
+    private void readHeader() throws JpegProcessingException, IOException {
+        if ((readByte() != MARKER_PREFIX) || (readByte() != MARKER_SOI)) {
+            throw new JpegProcessingException("not a JPEG file");
+        }
+        while (true) {
+            if ((mGuard != null) && !mGuard.withinDeadline()) {
+                return;
+            }
+            int marker = readMarker();
+            if (marker == MARKER_SOS) {
+                mReachedScan = true;
+                return;
+            }
+            if (marker == MARKER_EOI) {
+                return;
+            }
+            if (isStandalone(marker)) {
+                continue;
+            }
+            int length = (readByte() << 8) | readByte();
+            if (length < 2) {
+                throw new JpegProcessingException("invalid length " + length + " for segment 0x" + Integer.toHexString(marker));
+            }
+            if (mGuard != null) {
+                if (!mGuard.allowHeaderBytes(mBytesRead + length - 2)) {
+                    return;
+                }
+                if (!mGuard.allowSegment(marker, length - 2)) {
+                    mSegmentIndex.add(marker, mBytesRead, length - 2, null);
+                    skip(length - 2);
+                    continue;
+                }
+            }
+            long offset = mBytesRead;
+            byte[] payload;
+            if (mFilter == null) {
+                payload = addSegment(marker, readFully(length - 2));
+            } else {
+                payload = readFiltered(marker, length - 2);
+            }
+            mSegmentIndex.add(marker, offset, length - 2, payload);
+        }
+    }
+
+    /**
+     * @return the payload, or null if the guard dropped it
+     */
+    private byte[] addSegment(int marker, byte[] payload) throws ParseLimitExceededException {
+        if ((mGuard == null) || mGuard.allowPayload(marker, payload)) {
+            mSegmentData.addSegment((byte) marker, payload);
+            return payload;
+        }
+        return null;
+    }
+
+    /**
+     * Shows the start of the segment to the filter, then either reads the rest of it or skips over it.
+     * The bytes of a skipped segment are counted, but not hashed.
+     *
+     * @return the payload, or null if the segment was not kept
+     */
+    private byte[] readFiltered(int marker, int length) throws JpegProcessingException, IOException {
+        int headLength = Math.min(length, FILTER_HEAD_LENGTH);
+        read(mHead, 0, headLength);
+        if (!mFilter.accept(marker, mHead, headLength)) {
+            skip(length - headLength);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        System.arraycopy(mHead, 0, payload, 0, headLength);
+        read(payload, headLength, length - headLength);
+        return addSegment(marker, payload);
+    }
+
+    private int readMarker() throws JpegProcessingException, IOException {
+        if (readByte() != MARKER_PREFIX) {
+            throw new JpegProcessingException("expected JPEG marker prefix");
+        }
+        int marker = readByte();
+        // Any number of 0xFF fill bytes may precede a marker
+        while (marker == MARKER_PREFIX) {
+            if ((mGuard != null) && !mGuard.allowHeaderBytes(mBytesRead)) {
+                // Treat the header as ending here
+                return MARKER_EOI;
+            }
+            marker = readByte();
+        }
+        return marker;
+    }
+
+    private static boolean isStandalone(int marker) {
+        return (marker == MARKER_TEM) || ((marker >= MARKER_RST0) && (marker <= MARKER_RST7));
+    }
+
+    private int readByte() throws JpegProcessingException, IOException {
+        int b;
+        if (mBuffer != null) {
+            b = mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+        } else {
+            b = mInput.read();
+        }
+        if (b < 0) {
+            throw new JpegProcessingException("unexpected end of JPEG header");
+        }
+        mBytesRead++;
+        if (mHashing) {
+            hash(b);
+        }
+        return b;
+    }
+
+    private byte[] readFully(int length) throws JpegProcessingException, IOException {
+        byte[] buffer = new byte[length];
+        read(buffer, 0, length);
+        return buffer;
+    }
+
+    private void read(byte[] buffer, int offset, int length) throws JpegProcessingException, IOException {
+        if (mBuffer != null) {
+            if (mBuffer.remaining() < length) {
+                throw new JpegProcessingException("unexpected end of JPEG segment");
+            }
+            mBuffer.get(buffer, offset, length);
+        } else {
+            int done = 0;
+            while (done < length) {
+                int count = mInput.read(buffer, offset + done, length - done);
+                if (count < 0) {
+                    throw new JpegProcessingException("unexpected end of JPEG segment");
+                }
+                done += count;
+            }
+        }
+        mBytesRead += length;
+        if (mHashing) {
+            for (int i = offset; i < offset + length; i++) {
+                hash(buffer[i] & 0xFF);
+            }
+        }
+    }
+
+    private void skip(int length) throws JpegProcessingException, IOException {
+        if (mBuffer != null) {
+            if (mBuffer.remaining() < length) {
+                throw new JpegProcessingException("unexpected end of JPEG segment");
+            }
+            mBuffer.position(mBuffer.position() + length);
+        } else {
+            long remaining = length;
+            while (remaining > 0) {
+                long count = mInput.skip(remaining);
+                if (count <= 0) {
+                    // skip() may give up without reaching the end of the stream, so fall back to a read to tell which
+                    if (mInput.read() < 0) {
+                        throw new JpegProcessingException("unexpected end of JPEG segment");
+                    }
+                    count = 1;
+                }
+                remaining -= count;
+            }
+        }
+        mBytesRead += length;
+    }
+
+    private void hash(int b) {
+        mHash1 = (mHash1 ^ b) * FNV_PRIME;
+        mHash2 = Long.rotateLeft((mHash2 + b) * GOLDEN_GAMMA, 31);
+    }
+
+    /**
+     * Reads a buffer from its position to its limit, without copying it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    /**
+     * Value object identifying a JPEG header by its content.
+     */
+    public static final class HeaderHash {
+        private final long mHash1;
+        private final long mHash2;
+        private final long mLength;
+
+        HeaderHash(long hash1, long hash2, long length) {
+            mHash1 = hash1;
+            mHash2 = hash2;
+            mLength = length;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof HeaderHash)) {
+                return false;
+            }
+            HeaderHash that = (HeaderHash) other;
+            return (mHash1 == that.mHash1) && (mHash2 == that.mHash2) && (mLength == that.mLength);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mHash1 ^ (mHash1 >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x-%d", mHash1, mHash2, mLength);
+        }
+    }
+}
@@ -11,15 +11,31 @@
  **/
 package net.frogmouth.ddf.jpeginputtransformer;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import javax.xml.bind.JAXBException;
 
 import com.drew.imaging.jpeg.JpegMetadataReader;
 import com.drew.imaging.jpeg.JpegProcessingException;
 import com.drew.lang.GeoLocation;
+import com.drew.lang.Rational;
 import com.drew.metadata.Directory;
 import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
@@ -28,9 +44,10 @@ import com.drew.metadata.exif.GpsDirectory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.MetadataException;
 import com.drew.metadata.iptc.IptcDirectory;
+import com.drew.metadata.xmp.XmpDirectory;
 import com.drew.metadata.Tag;
 
-import ddf.catalog.data.BasicTypes;
+import ddf.catalog.data.AttributeImpl;
 import ddf.catalog.data.Metacard;
 import ddf.catalog.data.MetacardImpl;
 import ddf.catalog.CatalogFramework;
@@ -77,6 +94,8 @@ public class JpegInputTransformer implements InputTransformer {
 
     private static XMPSchemaRegistry registry = XMPMetaFactory.getSchemaRegistry();
 
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(new PrecisionModel(PrecisionModel.FLOATING), 4326);
+
     protected abstract static class XMPMapping {
         int _ExifTag;
         String _XmpNamespace;
@@ -89,11 +108,29 @@ public class JpegInputTransformer implements InputTransformer {
             _XmpName = XmpName;
         }
 
-        abstract void addTagValueToXmp(XMPMeta xmpMeta, Directory directoryToReadFrom) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException;
+        abstract void addTagValueToXmp(XMPPropertySink xmpMeta, Directory directoryToReadFrom, ExifDateParser dates) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException;
 
         protected int exifTag() {
             return _ExifTag;
         }
+
+        /**
+         * Creates a mapping from its external definition.
+         *
+         * @param type one of "string", "int", "rational" or "datetime"
+         */
+        static XMPMapping create(String type, int ExifTag, String XmpNamespace, String XmpName) {
+            if ("string".equals(type)) {
+                return new XMPMappingString(ExifTag, XmpNamespace, XmpName);
+            } else if ("int".equals(type)) {
+                return new XMPMappingInt(ExifTag, XmpNamespace, XmpName);
+            } else if ("rational".equals(type)) {
+                return new XMPMappingRational(ExifTag, XmpNamespace, XmpName);
+            } else if ("datetime".equals(type)) {
+                return new XMPMappingDateTime(ExifTag, XmpNamespace, XmpName);
+            }
+            throw new IllegalArgumentException("Unknown XMP mapping type: " + type);
+        }
     }
 
     private static class XMPMappingString extends XMPMapping {
@@ -101,7 +138,7 @@ public class JpegInputTransformer implements InputTransformer {
             super(ExifTag, XmpNamespace, XmpName);
         }
 
-        void addTagValueToXmp(XMPMeta xmpMeta, Directory directoryToReadFrom) throws com.adobe.xmp.XMPException {
+        void addTagValueToXmp(XMPPropertySink xmpMeta, Directory directoryToReadFrom, ExifDateParser dates) throws com.adobe.xmp.XMPException {
             xmpMeta.setProperty(_XmpNamespace, _XmpName, directoryToReadFrom.getString(_ExifTag));
         }
     }
@@ -111,7 +148,7 @@ public class JpegInputTransformer implements InputTransformer {
             super(ExifTag, XmpNamespace, XmpName);
         }
 
-        void addTagValueToXmp(XMPMeta xmpMeta, Directory directoryToReadFrom) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
+        void addTagValueToXmp(XMPPropertySink xmpMeta, Directory directoryToReadFrom, ExifDateParser dates) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
             xmpMeta.setProperty(_XmpNamespace, _XmpName, directoryToReadFrom.getInt(_ExifTag));
         }
     }
@@ -121,7 +158,7 @@ public class JpegInputTransformer implements InputTransformer {
             super(ExifTag, XmpNamespace, XmpName);
         }
 
-        void addTagValueToXmp(XMPMeta xmpMeta, Directory directoryToReadFrom) throws com.adobe.xmp.XMPException {
+        void addTagValueToXmp(XMPPropertySink xmpMeta, Directory directoryToReadFrom, ExifDateParser dates) throws com.adobe.xmp.XMPException {
             xmpMeta.setProperty(_XmpNamespace, _XmpName, directoryToReadFrom.getRational(_ExifTag));
         }
     }
@@ -131,8 +168,8 @@ public class JpegInputTransformer implements InputTransformer {
             super(ExifTag, XmpNamespace, XmpName);
         }
 
-        void addTagValueToXmp(XMPMeta xmpMeta, Directory directoryToReadFrom) throws com.adobe.xmp.XMPException {
-            xmpMeta.setProperty(_XmpNamespace, _XmpName, directoryToReadFrom.getDate(_ExifTag));
+        void addTagValueToXmp(XMPPropertySink xmpMeta, Directory directoryToReadFrom, ExifDateParser dates) throws com.adobe.xmp.XMPException {
+            xmpMeta.setProperty(_XmpNamespace, _XmpName, dates.getDate(directoryToReadFrom, _ExifTag));
         }
     }
 
@@ -171,6 +208,114 @@ public class JpegInputTransformer implements InputTransformer {
         new XMPMappingString(IptcDirectory.TAG_BY_LINE_TITLE, XMPConst.NS_PHOTOSHOP, "AuthorsPosition"),
     };
 
+    /**
+     * The mapping tables for each directory type, compiled once and replaced as a whole.
+     */
+    private static class XMPMappingTables {
+        final XMPMappingTable ifd0;
+        final XMPMappingTable subIFD;
+        final XMPMappingTable gps;
+        final XMPMappingTable iptc;
+
+        XMPMappingTables(List<XMPMapping> ifd0Mappings, List<XMPMapping> subIFDMappings, List<XMPMapping> gpsMappings, List<XMPMapping> iptcMappings) {
+            ifd0 = new XMPMappingTable(ifd0Mappings);
+            subIFD = new XMPMappingTable(subIFDMappings);
+            gps = new XMPMappingTable(gpsMappings);
+            iptc = new XMPMappingTable(iptcMappings);
+        }
+    }
+
+    private static final XMPMappingTables DEFAULT_MAPPINGS = new XMPMappingTables(Arrays.asList(xmpmapIFD0), Arrays.asList(xmpmapSubIFD), Arrays.asList(xmpmapgps), Arrays.asList(xmpmapiptc));
+
+    private volatile XMPMappingTables mMappings = DEFAULT_MAPPINGS;
+    private File mMappingFile = null;
+    private long mMappingFileModified = 0;
+
+    private boolean mStreamingXmpWriter = false;
+
+    private volatile MetacardCache mCache = null;
+
+    private TransformerMetrics mMetrics = new TransformerMetrics();
+
+    private boolean mLazyAttributes = false;
+
+    private int mThumbnailMaxEdge = 256;
+    private float mThumbnailQuality = 0.75f;
+
+    private volatile ExtractionProfile mProfile = ExtractionProfile.FULL;
+
+    private long mMaxHeaderBytes = 16 * 1024 * 1024;
+    private int mMaxSegmentBytes = 0;
+    private int mMaxTagsPerDirectory = 4096;
+    private long mParseTimeoutMillis = 10000;
+    private boolean mPartialMetadataOnLimit = false;
+
+    private boolean mReuseEmbeddedXmp = false;
+
+    private volatile PerceptualHashIndex mNearDuplicateIndex = null;
+
+    private volatile ThumbnailStore mThumbnailStore = null;
+    private long mThumbnailStoreBytes = 0;
+
+    /**
+     * The settings that shape the XMP metadata, captured when a transform starts, so a lazy metacard
+     * builds the same XMP on first access however the transformer has been reconfigured since.
+     */
+    static final class XmpSettings {
+        private final ExtractionProfile mProfile;
+        private final XMPMappingTables mMappings;
+        private final boolean mStreamingWriter;
+
+        XmpSettings(ExtractionProfile profile, XMPMappingTables mappings, boolean streamingWriter) {
+            mProfile = profile;
+            mMappings = mappings;
+            mStreamingWriter = streamingWriter;
+        }
+    }
+
+    /**
+     * Adapts an {@link XMPMeta} tree to the property sink used by the mappings.
+     */
+    private static class XMPMetaSink implements XMPPropertySink {
+        private final XMPMeta mXmpMeta;
+
+        XMPMetaSink(XMPMeta xmpMeta) {
+            mXmpMeta = xmpMeta;
+        }
+
+        @Override
+        public void setProperty(String namespace, String name, Object value) throws com.adobe.xmp.XMPException {
+            mXmpMeta.setProperty(namespace, name, value);
+        }
+    }
+
+    /**
+     * Adds the mapped properties to an embedded XMP packet, leaving alone any property the packet already has.
+     */
+    private static class XMPMergeSink implements XMPPropertySink {
+        private final XMPMeta mXmpMeta;
+        private int mAdded = 0;
+
+        XMPMergeSink(XMPMeta xmpMeta) {
+            mXmpMeta = xmpMeta;
+        }
+
+        @Override
+        public void setProperty(String namespace, String name, Object value) throws com.adobe.xmp.XMPException {
+            if (!mXmpMeta.doesPropertyExist(namespace, name)) {
+                mXmpMeta.setProperty(namespace, name, value);
+                mAdded++;
+            }
+        }
+
+        /**
+         * The number of properties the packet did not already have.
+         */
+        int getAdded() {
+            return mAdded;
+        }
+    }
+
     /**
      * Transforms JPEG images with EXIF or XMP metadata into a {@link Metacard}
      */
@@ -186,18 +331,314 @@ public class JpegInputTransformer implements InputTransformer {
             throw new CatalogTransformerException("Cannot transform null input.");
         }
 
-        MetacardImpl metacard = new MetacardImpl(BasicTypes.BASIC_METACARD);
+        return transform(input, null, id);
+    }
+
+    /**
+     * Transforms a JPEG image while copying it, byte for byte, to a sink.
+     *
+     * The metadata is extracted from the header segments as they flow past, and once the transform is
+     * done the rest of the input is forwarded as well, so the sink always ends up with the complete image.
+     * This lets the caller store the product and extract its metadata in a single read of the input.
+     * The input is forwarded in full even if the transform fails, in which case a failure to forward it is
+     * logged, so the exception thrown is the one that failed the transform. The sink is flushed but not closed.
+     *
+     * @param input the JPEG image
+     * @param id the metacard id, may be null
+     * @param sink where every byte of the input is written, typically the content store
+     */
+    public Metacard transform(InputStream input, String id, OutputStream sink) throws IOException, CatalogTransformerException {
+        if (input == null) {
+            throw new CatalogTransformerException("Cannot transform null input.");
+        }
+        if (sink == null) {
+            return transform(input, id);
+        }
+
+        TeeInputStream tee = new TeeInputStream(input, sink);
+        Metacard metacard;
+        try {
+            metacard = transform(tee, null, id);
+        } catch (CatalogTransformerException e) {
+            drainAfterFailure(tee);
+            throw e;
+        } catch (IOException e) {
+            drainAfterFailure(tee);
+            throw e;
+        } catch (RuntimeException e) {
+            drainAfterFailure(tee);
+            throw e;
+        }
+        tee.drain();
+        return metacard;
+    }
+
+    private static void drainAfterFailure(TeeInputStream tee) {
+        try {
+            tee.drain();
+        } catch (IOException e) {
+            LOGGER.warn("Could not forward the rest of the input to the sink after the transform failed", e);
+        }
+    }
+
+    /**
+     * Transforms a JPEG file on local disk into a {@link Metacard}.
+     *
+     * The file is memory-mapped and the JPEG markers are walked directly in the mapping, so there is no
+     * buffered copying of the file. Only the header segment payloads are copied out, because the
+     * metadata extractors need them as byte arrays. The scan data is never touched unless a thumbnail
+     * has to be generated from it, and then it is decoded straight from the mapping. A file too large to
+     * map in one piece is read as a stream instead, which still only reads the header.
+     */
+    public Metacard transformFile(File file, String id) throws IOException, CatalogTransformerException {
+        if (file == null) {
+            throw new CatalogTransformerException("Cannot transform null input.");
+        }
+
+        if (file.length() > Integer.MAX_VALUE) {
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return transform(input, null, id);
+            } finally {
+                input.close();
+            }
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return transform(null, mapped, id);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public Metacard transformFile(File file) throws IOException, CatalogTransformerException {
+        return transformFile(file, null);
+    }
+
+    /**
+     * Transforms every image of a Multi-Picture (MPO) file into a {@link Metacard}.
+     *
+     * The first metacard is the one {@link #transformFile(File, String)} returns. It is followed by one
+     * for each other image listed in the MPF segment, such as the second view of a stereo pair, with the
+     * {@link JpegMetacardType#MPF_IMAGE_INDEX} and {@link JpegMetacardType#MPF_PARENT_ID} attributes set.
+     * Each image is reached through the offset in the MPF segment, so only its header is read. An image
+     * that cannot be transformed is left out. A plain JPEG, or a profile without the mpf feature, gives a
+     * single metacard.
+     *
+     * @param id the id of the first metacard, the others have "-" and their index appended. May be null.
+     */
+    public List<Metacard> transformImages(File file, String id) throws IOException, CatalogTransformerException {
+        if (file == null) {
+            throw new CatalogTransformerException("Cannot transform null input.");
+        }
+
+        if (file.length() > Integer.MAX_VALUE) {
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return transformImages(input, id);
+            } finally {
+                input.close();
+            }
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<MpfIndex.Entry> images = new ArrayList<MpfIndex.Entry>();
+            List<Metacard> metacards = new ArrayList<Metacard>();
+            Metacard primary = transform(null, mapped.duplicate(), id, images);
+            metacards.add(primary);
+            for (MpfIndex.Entry image : images) {
+                if ((image.mIndex == 0) || (image.mOffset + image.mSize > mapped.capacity())) {
+                    continue;
+                }
+                ByteBuffer slice = mapped.duplicate();
+                slice.position((int) image.mOffset);
+                slice.limit((int) (image.mOffset + image.mSize));
+                addImage(metacards, primary, null, slice.slice(), id, image);
+            }
+            return metacards;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Transforms every image of a Multi-Picture (MPO) stream, as {@link #transformImages(File, String)} does.
+     *
+     * The images are transformed in the order they appear in the stream, skipping the image data in between.
+     * If a thumbnail has to be generated for an image, the decoder may read past its end, and the images
+     * it read over are left out.
+     */
+    public List<Metacard> transformImages(InputStream input, String id) throws IOException, CatalogTransformerException {
+        if (input == null) {
+            throw new CatalogTransformerException("Cannot transform null input.");
+        }
+
+        LimitedInputStream counted = new LimitedInputStream(input, Long.MAX_VALUE);
+        List<MpfIndex.Entry> images = new ArrayList<MpfIndex.Entry>();
+        List<Metacard> metacards = new ArrayList<Metacard>();
+        Metacard primary = transform(counted, null, id, images);
+        metacards.add(primary);
+        for (MpfIndex.Entry image : images) {
+            if (image.mIndex == 0) {
+                continue;
+            }
+            if (counted.getPosition() > image.mOffset) {
+                LOGGER.warn("Multi-Picture image {} was read over, leaving it out", image.mIndex);
+                continue;
+            }
+            if (!counted.skipTo(image.mOffset)) {
+                LOGGER.warn("Multi-Picture stream ended before image {}", image.mIndex);
+                break;
+            }
+            addImage(metacards, primary, new LimitedInputStream(counted, image.mSize), null, id, image);
+        }
+        return metacards;
+    }
+
+    /**
+     * Transforms one of the other images of a Multi-Picture file and adds it to the list, or logs why it could not.
+     */
+    private void addImage(List<Metacard> metacards, Metacard primary, InputStream input, ByteBuffer buffer, String id, MpfIndex.Entry image) throws IOException {
+        try {
+            Metacard metacard = transform(input, buffer, (id != null) ? id + "-" + image.mIndex : null, null);
+            metacard.setAttribute(new AttributeImpl(JpegMetacardType.MPF_IMAGE_INDEX, image.mIndex));
+            if (primary.getId() != null) {
+                metacard.setAttribute(new AttributeImpl(JpegMetacardType.MPF_PARENT_ID, primary.getId()));
+            }
+            metacards.add(metacard);
+        } catch (CatalogTransformerException e) {
+            LOGGER.warn("Could not transform Multi-Picture image " + image.mIndex, e);
+        }
+    }
+
+    /**
+     * Does the transform, reading the header either from the stream or from the buffer.
+     */
+    private Metacard transform(InputStream input, ByteBuffer buffer, String id) throws IOException, CatalogTransformerException {
+        return transform(input, buffer, id, null);
+    }
+
+    /**
+     * Does the transform, reading the header either from the stream or from the buffer.
+     *
+     * @param images if not null, the images listed in the MPF segment are added to it
+     */
+    private Metacard transform(InputStream input, ByteBuffer buffer, String id, List<MpfIndex.Entry> images) throws IOException, CatalogTransformerException {
+        MetacardCache cache = mCache;
+        TransformerMetrics metrics = mMetrics;
+        PerceptualHashIndex index = mNearDuplicateIndex;
+        ThumbnailStore thumbnails = mThumbnailStore;
+        boolean lazy = mLazyAttributes;
+        ExtractionProfile profile = mProfile;
+        XmpSettings xmpSettings = new XmpSettings(profile, mMappings, mStreamingXmpWriter);
+        boolean reuseXmp = mReuseEmbeddedXmp;
+        JpegHeaderReader.SegmentFilter filter = null;
+        if (!profile.keepsAllSegments()) {
+            filter = reuseXmp ? profile.withEmbeddedXmp() : profile;
+        }
+        long transformStart = System.nanoTime();
+        ParseGuard guard = new ParseGuard(mMaxHeaderBytes, mMaxSegmentBytes, mMaxTagsPerDirectory, mParseTimeoutMillis, mPartialMetadataOnLimit);
+        MetacardImpl metacard;
         try {
-            Metadata metadata = JpegMetadataReader.readMetadata(input);
+            // Only the segments in front of the first scan are read, the compressed image data is left in the stream
+            // unless it is needed to generate a thumbnail
+            JpegHeaderReader headerReader;
+            if (buffer != null) {
+                headerReader = new JpegHeaderReader(buffer, cache != null, filter, guard);
+            } else {
+                headerReader = new JpegHeaderReader(input, cache != null, filter, guard);
+            }
+            metrics.addBytesRead(headerReader.getBytesRead());
+            // The image list is read before the cache, because the caller needs it for a cached image too
+            List<MpfIndex.Entry> mpfImages = Collections.emptyList();
+            if (profile.isEnabled(ExtractionProfile.Feature.MPF)) {
+                mpfImages = MpfIndex.find(headerReader.getSegmentIndex());
+                if (images != null) {
+                    images.addAll(mpfImages);
+                }
+            }
+            // Only images whose metacard depends on nothing but the header are cached, so a hit is always safe
+            if ((cache != null) && (guard.getLimitHit() == null)) {
+                Metacard cached = cache.get(headerReader.getHeaderHash(), id);
+                if (cached != null) {
+                    if (index != null) {
+                        index.add(cached);
+                    }
+                    metrics.record(TransformerMetrics.Stage.TOTAL, transformStart);
+                    return cached;
+                }
+            }
+            Metadata metadata = JpegMetadataReader.extractMetadataFromJpegSegmentReader(headerReader.getSegmentData());
+            long start = metrics.record(TransformerMetrics.Stage.READ, transformStart);
+            if (metadata.hasErrors()) {
+                metrics.addMetadataError();
+            }
+
+            ExifDateParser dates = new ExifDateParser(metadata);
+            String embeddedXmp = null;
+            if (reuseXmp && profile.isEnabled(ExtractionProfile.Feature.XMP)) {
+                embeddedXmp = EmbeddedXmp.findPacket(headerReader.getSegmentData());
+            }
+
+            if (lazy) {
+                metacard = new LazyJpegMetacard(JpegMetacardType.JPEG_METACARD, metadata, embeddedXmp, xmpSettings, thumbnails, this);
+            } else if (thumbnails != null) {
+                metacard = new StoredThumbnailMetacard(JpegMetacardType.JPEG_METACARD, thumbnails);
+            } else {
+                metacard = new MetacardImpl(JpegMetacardType.JPEG_METACARD);
+            }
 
-            processExifIFD0Directory(metadata, metacard);
-            processExifSubIFDDirectory(metadata, metacard);
+            // Each stage runs only if there is time left. With partial metadata, the rest are skipped once the deadline passes
+            if (profile.isEnabled(ExtractionProfile.Feature.IFD0) && guard.withinDeadline()) {
+                processExifIFD0Directory(metadata, metacard, dates);
+                start = metrics.record(TransformerMetrics.Stage.IFD0, start);
+            }
+            if (profile.isEnabled(ExtractionProfile.Feature.SUB_IFD) && guard.withinDeadline()) {
+                processExifSubIFDDirectory(metadata, metacard, dates);
+                start = metrics.record(TransformerMetrics.Stage.SUB_IFD, start);
+            }
+
+            boolean scanThumbnail = false;
+            if (profile.isEnabled(ExtractionProfile.Feature.THUMBNAIL) && guard.withinDeadline()) {
+                boolean exifThumbnail = hasExifThumbnail(metadata);
+                if (!lazy) {
+                    generateThumbnail(metadata, metacard);
+                }
+                // A generated thumbnail needs the rest of the stream, which is only available now
+                if (!exifThumbnail && profile.isEnabled(ExtractionProfile.Feature.GENERATED_THUMBNAIL) && (mThumbnailMaxEdge > 0)) {
+                    generateSubsampledThumbnail(headerReader, metacard, guard);
+                    scanThumbnail = true;
+                }
+                if (!lazy || !exifThumbnail) {
+                    metrics.addThumbnail(metacard.getThumbnail());
+                }
+                if (profile.isEnabled(ExtractionProfile.Feature.PERCEPTUAL_HASH)) {
+                    // Hash the EXIF thumbnail where it is, rather than making the lazy metacard copy it now
+                    addPerceptualHash((lazy && exifThumbnail) ? getExifThumbnailData(metadata) : metacard.getThumbnail(), metacard);
+                }
+                start = metrics.record(TransformerMetrics.Stage.THUMBNAIL, start);
+            } else if (lazy) {
+                // Nothing left for the lazy metacard to build
+                metacard.setThumbnail(null);
+            }
 
-            generateThumbnail(metadata, metacard);
+            if (profile.isEnabled(ExtractionProfile.Feature.GPS) && guard.withinDeadline()) {
+                processGPSDirectory(metadata, metacard);
+                start = metrics.record(TransformerMetrics.Stage.GPS, start);
+            }
 
-            processGPSDirectory(metadata, metacard);
+            if (profile.isEnabled(ExtractionProfile.Feature.IPTC) && guard.withinDeadline()) {
+                processIptcDirectory(metadata, metacard);
+                start = metrics.record(TransformerMetrics.Stage.IPTC, start);
+            }
 
-            processIptcDirectory(metadata, metacard);
+            if (!mpfImages.isEmpty()) {
+                addMultiPictureAttributes(mpfImages, metacard);
+            }
 
             if (id != null) {
                 metacard.setId(id);
@@ -207,16 +648,48 @@ public class JpegInputTransformer implements InputTransformer {
 
             metacard.setContentTypeName(MIME_TYPE);
 
-            convertImageMetadataToMetacardMetadata(metadata, metacard);
+            if (!profile.isEnabled(ExtractionProfile.Feature.XMP)) {
+                // Nothing left for the lazy metacard to build
+                if (lazy) {
+                    metacard.setMetadata(null);
+                }
+            } else if (!lazy && guard.withinDeadline()) {
+                convertImageMetadataToMetacardMetadata(metadata, embeddedXmp, metacard, xmpSettings, dates);
+                metrics.record(TransformerMetrics.Stage.XMP, start);
+            }
+
+            if (guard.getLimitHit() != null) {
+                // Partial metadata depends on where the limit was hit, so it is not cached
+                metrics.addLimitHit();
+            } else if ((cache != null) && !scanThumbnail) {
+                // A thumbnail decoded from the scan data differs between images with identical headers
+                cache.put(headerReader.getHeaderHash(), metacard);
+            }
+            if (index != null) {
+                index.add(metacard);
+            }
+            metrics.record(TransformerMetrics.Stage.TOTAL, transformStart);
         } catch (JpegProcessingException e) {
+            metrics.addException(e);
             LOGGER.warn("JPEG Exception processing metadata", e);
             throw new CatalogTransformerException(e);
         } catch (JAXBException e) {
+            metrics.addException(e);
             LOGGER.warn("JAXB Exception processing metadata", e);
             throw new CatalogTransformerException(e);
         } catch (MetadataException e) {
+            metrics.addException(e);
             LOGGER.warn("Metadata Exception processing metadata", e);
             throw new CatalogTransformerException(e);
+        } catch (CatalogTransformerException e) {
+            metrics.addException(e.getCause() != null ? e.getCause() : e);
+            throw e;
+        } catch (IOException e) {
+            metrics.addException(e);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.addException(e);
+            throw e;
         }
 
         return metacard;
@@ -231,18 +704,318 @@ public class JpegInputTransformer implements InputTransformer {
         this.mCatalog = catalog;
     }
 
-    private void processExifSubIFDDirectory(Metadata metadata, MetacardImpl metacard) {
+    /**
+     * Sets the metrics the transformer records into. The blueprint container supplies an instance that
+     * is published over JMX, otherwise an unpublished instance is used.
+     */
+    public void setMetrics(TransformerMetrics metrics) {
+        this.mMetrics = metrics;
+    }
+
+    public TransformerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets the number of transformed metacards to cache, keyed by a hash of the JPEG header, so a
+     * duplicate image is only parsed once. Zero (the default) disables the cache. Images whose thumbnail
+     * is generated from the scan data are not cached, since their header does not identify them.
+     * Setting the size the cache already has keeps its contents.
+     */
+    public synchronized void setCacheSize(int cacheSize) {
+        MetacardCache cache = mCache;
+        if (cacheSize <= 0) {
+            mCache = null;
+        } else if ((cache == null) || (cache.getMaxEntries() != cacheSize)) {
+            mCache = new MetacardCache(cacheSize);
+        }
+    }
+
+    /**
+     * The metacard cache, for its hit, miss and eviction statistics, or null if caching is disabled.
+     */
+    public MetacardCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Sets the off-heap memory, in bytes, for a {@link ThumbnailStore} that holds the thumbnails instead
+     * of the metacards, which then copy their thumbnail out of the store when it is read. Identical
+     * thumbnails are stored once. Zero (the default) disables the store. Metacards served from the cache
+     * carry their thumbnail on the heap, since the cache copies every attribute. Setting the size the
+     * store already has keeps its contents, and a new size resizes the store in place, so the metacards
+     * already holding thumbnails in it keep them where there is room.
+     */
+    public synchronized void setThumbnailStoreBytes(long thumbnailStoreBytes) {
+        if (thumbnailStoreBytes <= 0) {
+            mThumbnailStore = null;
+        } else if (mThumbnailStore == null) {
+            mThumbnailStore = new ThumbnailStore(thumbnailStoreBytes);
+        } else if (mThumbnailStoreBytes != thumbnailStoreBytes) {
+            mThumbnailStore.setCapacity(thumbnailStoreBytes);
+        }
+        mThumbnailStoreBytes = thumbnailStoreBytes;
+    }
+
+    /**
+     * The thumbnail store, for its statistics, or null if thumbnails are kept on the metacards.
+     */
+    public ThumbnailStore getThumbnailStore() {
+        return mThumbnailStore;
+    }
+
+    /**
+     * When true, {@link #transform} returns a {@link LazyJpegMetacard}, which builds the XMP metadata and
+     * copies the EXIF thumbnail only when they are first read. A thumbnail that has to be generated from
+     * the image data is still built during the transform, because it needs the rest of the input stream.
+     * A cached metacard is always built in full, because caching copies every attribute.
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+        this.mLazyAttributes = lazyAttributes;
+    }
+
+    /**
+     * Sets the maximum width or height of thumbnails generated for images that have no embedded EXIF
+     * thumbnail. Zero disables generation, so those images get no thumbnail. Cached metacards may have
+     * been built with the old size, so a change clears the cache.
+     */
+    public void setThumbnailMaxEdge(int thumbnailMaxEdge) {
+        if (thumbnailMaxEdge != mThumbnailMaxEdge) {
+            this.mThumbnailMaxEdge = thumbnailMaxEdge;
+            clearCache();
+        }
+    }
+
+    /**
+     * Sets the JPEG compression quality, from 0 to 1, of generated thumbnails.
+     */
+    public void setThumbnailQuality(float thumbnailQuality) {
+        if ((thumbnailQuality < 0.0f) || (thumbnailQuality > 1.0f)) {
+            throw new IllegalArgumentException("thumbnailQuality must be between 0 and 1");
+        }
+        this.mThumbnailQuality = thumbnailQuality;
+    }
+
+    /**
+     * Sets the most header bytes read from one JPEG, including fill bytes and skipped segments.
+     * Zero removes the limit. The default is 16MB.
+     */
+    public void setMaxHeaderBytes(long maxHeaderBytes) {
+        this.mMaxHeaderBytes = maxHeaderBytes;
+    }
+
+    /**
+     * Sets the size of the largest header segment that is parsed. Zero (the default) removes the limit,
+     * leaving only the 64KB that the JPEG segment length allows.
+     */
+    public void setMaxSegmentBytes(int maxSegmentBytes) {
+        this.mMaxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Sets the most tags in an EXIF directory, or records in the IPTC block, of a segment that is parsed.
+     * Zero removes the limit. The default is 4096.
+     */
+    public void setMaxTagsPerDirectory(int maxTagsPerDirectory) {
+        this.mMaxTagsPerDirectory = maxTagsPerDirectory;
+    }
+
+    /**
+     * Sets the wall-clock time allowed for one transform, in milliseconds. It is checked between header
+     * segments, between stages and while a thumbnail is being decoded. Zero removes the limit. The
+     * default is 10 seconds.
+     */
+    public void setParseTimeoutMillis(long parseTimeoutMillis) {
+        this.mParseTimeoutMillis = parseTimeoutMillis;
+    }
+
+    /**
+     * Selects what happens when a JPEG exceeds one of the parsing limits. When false (the default), the
+     * transform fails with a {@link CatalogTransformerException} caused by a
+     * {@link ParseLimitExceededException}. When true, whatever exceeded the limit is left out and the
+     * metacard has the metadata extracted from the rest.
+     */
+    public void setPartialMetadataOnLimit(boolean partialMetadataOnLimit) {
+        this.mPartialMetadataOnLimit = partialMetadataOnLimit;
+    }
+
+    /**
+     * Selects how the XMP metadata is serialized. When true, the mapped properties are written straight
+     * into an XMP packet by {@link XMPStreamWriter}. When false (the default), an Adobe {@link XMPMeta} tree
+     * is built and serialized by XMPCore. Both produce the same RDF, but the packets are not byte for byte
+     * identical, so a change clears the cache.
+     */
+    public void setStreamingXmpWriter(boolean streamingXmpWriter) {
+        if (streamingXmpWriter != mStreamingXmpWriter) {
+            this.mStreamingXmpWriter = streamingXmpWriter;
+            clearCache();
+        }
+    }
+
+    /**
+     * When true, an XMP packet embedded in the JPEG is used as the metacard metadata, with only the mapped
+     * EXIF and IPTC properties it does not already have merged in. If it has all of them, the packet is
+     * used as it is, without being serialized again. Images without a packet, or with one that cannot be
+     * parsed, get XMP built from the mappings as before. When false (the default), embedded packets are
+     * ignored. Cached metacards may have been built the other way, so a change clears the cache.
+     *
+     * The errors property is only added to a reused packet when the metadata has errors.
+     */
+    public void setReuseEmbeddedXmp(boolean reuseEmbeddedXmp) {
+        if (reuseEmbeddedXmp != mReuseEmbeddedXmp) {
+            this.mReuseEmbeddedXmp = reuseEmbeddedXmp;
+            clearCache();
+        }
+    }
+
+    /**
+     * Selects the extraction profile, see {@link ExtractionProfile} for the syntax. The default is "full".
+     *
+     * This is a managed property, so a configuration change takes effect from the next transform without
+     * restarting the bundle. Cached metacards were built with the old profile, so a change clears the
+     * cache. An invalid definition is logged and the previous profile kept.
+     */
+    public void setProfile(String profile) {
+        ExtractionProfile previous = mProfile;
+        try {
+            if ((profile == null) || (profile.trim().length() == 0)) {
+                mProfile = ExtractionProfile.FULL;
+            } else {
+                mProfile = ExtractionProfile.parse(profile);
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid extraction profile " + profile + ", keeping " + previous.getName(), e);
+            return;
+        }
+        if (!mProfile.getFeatures().equals(previous.getFeatures()) || (mProfile.keepsAllSegments() != previous.keepsAllSegments())) {
+            clearCache();
+        }
+    }
+
+    private void clearCache() {
+        MetacardCache cache = mCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    public ExtractionProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Sets the index that the perceptual hash of each transformed image is added to, so near-duplicates of
+     * it can be found. Only transforms given an id are indexed, since the id is what the index returns.
+     * Null (the default) disables indexing.
+     */
+    public void setNearDuplicateIndex(PerceptualHashIndex nearDuplicateIndex) {
+        this.mNearDuplicateIndex = nearDuplicateIndex;
+    }
+
+    public PerceptualHashIndex getNearDuplicateIndex() {
+        return mNearDuplicateIndex;
+    }
+
+    /**
+     * Adds the XMP mappings defined in a properties file to the built-in mappings.
+     *
+     * Each key is a directory name ("ifd0", "subifd", "gps" or "iptc") and a tag type (decimal, or hex
+     * with a 0x prefix), separated by a dot. Each value is the mapping type ("string", "int", "rational"
+     * or "datetime"), the XMP namespace and the XMP property name, separated by commas. For example:
+     *
+     * <pre>
+     * subifd.0x8827=int,http://ns.adobe.com/exif/1.0/,ISOSpeedRatings
+     * </pre>
+     *
+     * Tag types must be between 0 and 0xFFFF, and namespaces registered with XMPCore. A file with a line
+     * that is malformed or breaks these rules is logged and ignored, and the previous mappings kept.
+     *
+     * An empty or null path restores the built-in mappings. Cached metacards were built with the old
+     * mappings, so a change clears the cache. Setting the same path again only reloads the file if it
+     * has been modified since it was read.
+     */
+    public synchronized void setMappingFile(String path) {
+        if ((path == null) || (path.trim().length() == 0)) {
+            mMappingFile = null;
+            if (mMappings != DEFAULT_MAPPINGS) {
+                mMappings = DEFAULT_MAPPINGS;
+                clearCache();
+            }
+            return;
+        }
+        File file = new File(path.trim());
+        if (file.equals(mMappingFile) && (file.lastModified() == mMappingFileModified)) {
+            return;
+        }
+        Properties definitions = new Properties();
+        try {
+            long modified = file.lastModified();
+            InputStream input = new FileInputStream(file);
+            try {
+                definitions.load(input);
+            } finally {
+                input.close();
+            }
+            mMappings = compileMappings(definitions);
+            mMappingFile = file;
+            mMappingFileModified = modified;
+            clearCache();
+        } catch (IOException e) {
+            LOGGER.warn("Could not read XMP mapping file " + path + ", keeping previous mappings", e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid XMP mapping file " + path + ", keeping previous mappings", e);
+        }
+    }
+
+    private static XMPMappingTables compileMappings(Properties definitions) {
+        List<XMPMapping> ifd0Mappings = new ArrayList<XMPMapping>(Arrays.asList(xmpmapIFD0));
+        List<XMPMapping> subIFDMappings = new ArrayList<XMPMapping>(Arrays.asList(xmpmapSubIFD));
+        List<XMPMapping> gpsMappings = new ArrayList<XMPMapping>(Arrays.asList(xmpmapgps));
+        List<XMPMapping> iptcMappings = new ArrayList<XMPMapping>(Arrays.asList(xmpmapiptc));
+        for (Map.Entry<Object, Object> definition : definitions.entrySet()) {
+            String key = definition.getKey().toString().trim();
+            int separator = key.indexOf('.');
+            String[] value = definition.getValue().toString().split(",");
+            if ((separator < 0) || (value.length != 3)) {
+                throw new IllegalArgumentException("Malformed XMP mapping: " + key);
+            }
+            String directory = key.substring(0, separator);
+            int tagType = Integer.decode(key.substring(separator + 1));
+            if ((tagType < 0) || (tagType > XMPMappingTable.MAX_TAG_TYPE)) {
+                throw new IllegalArgumentException("Tag type out of range in XMP mapping: " + key);
+            }
+            String namespace = value[1].trim();
+            if (registry.getNamespacePrefix(namespace) == null) {
+                throw new IllegalArgumentException("Unregistered XMP namespace in XMP mapping: " + key);
+            }
+            XMPMapping mapping = XMPMapping.create(value[0].trim(), tagType, namespace, value[2].trim());
+            if ("ifd0".equals(directory)) {
+                ifd0Mappings.add(mapping);
+            } else if ("subifd".equals(directory)) {
+                subIFDMappings.add(mapping);
+            } else if ("gps".equals(directory)) {
+                gpsMappings.add(mapping);
+            } else if ("iptc".equals(directory)) {
+                iptcMappings.add(mapping);
+            } else {
+                throw new IllegalArgumentException("Unknown directory in XMP mapping: " + key);
+            }
+        }
+        return new XMPMappingTables(ifd0Mappings, subIFDMappings, gpsMappings, iptcMappings);
+    }
+
+    private void processExifSubIFDDirectory(Metadata metadata, MetacardImpl metacard, ExifDateParser dates) {
         ExifSubIFDDirectory exifdirectory = metadata.getDirectory(ExifSubIFDDirectory.class);
         if ((exifdirectory != null) && (exifdirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL))) {
-            Date date = exifdirectory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+            Date date = dates.getDate(exifdirectory, ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
             metacard.setCreatedDate(date);
         }
     }
 
-    private void processExifIFD0Directory(Metadata metadata, MetacardImpl metacard) {
+    private void processExifIFD0Directory(Metadata metadata, MetacardImpl metacard, ExifDateParser dates) {
         ExifIFD0Directory exifdirectory = metadata.getDirectory(ExifIFD0Directory.class);
         if ((exifdirectory != null) && (exifdirectory.containsTag(ExifIFD0Directory.TAG_DATETIME))) {
-            Date date = exifdirectory.getDate(ExifIFD0Directory.TAG_DATETIME);
+            Date date = dates.getDate(exifdirectory, ExifIFD0Directory.TAG_DATETIME);
             metacard.setModifiedDate(date);
         }
     }
@@ -263,63 +1036,161 @@ public class JpegInputTransformer implements InputTransformer {
         }
     }
 
-    private void generateThumbnail(Metadata metadata, MetacardImpl metacard) {
+    /**
+     * Adds the number of images in a Multi-Picture file and the type of each.
+     */
+    private void addMultiPictureAttributes(List<MpfIndex.Entry> images, MetacardImpl metacard) {
+        List<Serializable> types = new ArrayList<Serializable>();
+        for (MpfIndex.Entry image : images) {
+            types.add(image.getTypeName());
+        }
+        metacard.setAttribute(JpegMetacardType.MPF_IMAGE_COUNT, images.size());
+        metacard.setAttribute(new AttributeImpl(JpegMetacardType.MPF_IMAGE_TYPES, types));
+    }
+
+    void generateThumbnail(Metadata metadata, MetacardImpl metacard) {
         ExifThumbnailDirectory thumbnailDirectory = metadata.getDirectory(ExifThumbnailDirectory.class);
         if ((thumbnailDirectory != null) && (thumbnailDirectory.hasThumbnailData())) {
             metacard.setThumbnail(thumbnailDirectory.getThumbnailData());
         }
-        // Future: we could generate a thumbnail from the source image if we don't have one here.
     }
 
-    private void processGPSDirectory(Metadata metadata, MetacardImpl metacard) {
-        GpsDirectory gpsDirectory = metadata.getDirectory(GpsDirectory.class);
-        if ((gpsDirectory != null) && (gpsDirectory.getGeoLocation() != null)) {
-            GeoLocation location = gpsDirectory.getGeoLocation();
+    /**
+     * Thumbnail for images without an embedded one, decoded from the scan data at reduced resolution.
+     * This is the only stage that reads past the header, so the rest of the stream is consumed here.
+     * Decoding that is abandoned at the deadline counts as exceeding it, like any other stage.
+     */
+    private void generateSubsampledThumbnail(JpegHeaderReader headerReader, MetacardImpl metacard, ParseGuard guard) throws ParseLimitExceededException {
+        if (!headerReader.reachedScan()) {
+            return;
+        }
+        long deadlineNanos = guard.getDeadlineNanos();
+        try {
+            byte[] thumbnail;
+            ByteBuffer remainder = headerReader.getRemainderBuffer();
+            if (remainder != null) {
+                thumbnail = SubsampledThumbnail.generate(headerReader.getSegmentData(), remainder, mThumbnailMaxEdge, mThumbnailQuality, deadlineNanos);
+            } else {
+                thumbnail = SubsampledThumbnail.generate(headerReader.getSegmentData(), headerReader.getRemainder(), mThumbnailMaxEdge, mThumbnailQuality, deadlineNanos);
+            }
+            if (thumbnail != null) {
+                metacard.setThumbnail(thumbnail);
+            } else {
+                // Fails the transform, or records the limit so the partial metadata is not cached
+                guard.withinDeadline();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Could not generate a thumbnail from the image data", e);
+        } catch (RuntimeException e) {
+            // ImageIO decoders throw unchecked exceptions on corrupt scan data, which should not lose the metadata
+            LOGGER.debug("Could not decode the image data for a thumbnail", e);
+        }
+    }
+
+    /**
+     * Adds the perceptual hash of the thumbnail, if there is one and it can be decoded.
+     */
+    private void addPerceptualHash(byte[] thumbnail, MetacardImpl metacard) {
+        if (thumbnail == null) {
+            return;
+        }
+        try {
+            metacard.setAttribute(JpegMetacardType.PERCEPTUAL_HASH, PerceptualHash.toHex(PerceptualHash.dHash(thumbnail)));
+        } catch (IOException e) {
+            LOGGER.debug("Could not decode the thumbnail for a perceptual hash", e);
+        }
+    }
+
+    private static byte[] getExifThumbnailData(Metadata metadata) {
+        return metadata.getDirectory(ExifThumbnailDirectory.class).getThumbnailData();
+    }
+
+    private static boolean hasExifThumbnail(Metadata metadata) {
+        ExifThumbnailDirectory thumbnailDirectory = metadata.getDirectory(ExifThumbnailDirectory.class);
+        return (thumbnailDirectory != null) && thumbnailDirectory.hasThumbnailData();
+    }
 
-            GeometryFactory geomFactory = new GeometryFactory(new PrecisionModel(com.vividsolutions.jts.geom.PrecisionModel.FLOATING), 4326);
-            Geometry point = geomFactory.createPoint(new Coordinate(location.getLongitude(), location.getLatitude()));
+    void processGPSDirectory(Metadata metadata, MetacardImpl metacard) {
+        GpsDirectory gpsDirectory = metadata.getDirectory(GpsDirectory.class);
+        if (gpsDirectory == null) {
+            return;
+        }
+        GeoLocation location = gpsDirectory.getGeoLocation();
+        if (location != null) {
+            Geometry point = GEOMETRY_FACTORY.createPoint(new Coordinate(location.getLongitude(), location.getLatitude()));
             CompositeGeometry position = CompositeGeometry.getCompositeGeometry(point);
             metacard.setLocation(position.toWkt());
+            addGeoHashes(location, metacard);
+        }
+
+        Rational altitude = gpsDirectory.getRational(GpsDirectory.TAG_GPS_ALTITUDE);
+        if (altitude != null) {
+            Integer altitudeRef = gpsDirectory.getInteger(GpsDirectory.TAG_GPS_ALTITUDE_REF);
+            // A reference of 1 means the altitude is below sea level
+            boolean belowSeaLevel = (altitudeRef != null) && (altitudeRef.intValue() == 1);
+            metacard.setAttribute(JpegMetacardType.GPS_ALTITUDE, belowSeaLevel ? -altitude.doubleValue() : altitude.doubleValue());
+        }
+        Rational direction = gpsDirectory.getRational(GpsDirectory.TAG_GPS_IMG_DIRECTION);
+        if (direction != null) {
+            metacard.setAttribute(JpegMetacardType.GPS_IMAGE_DIRECTION, direction.doubleValue());
+            String directionRef = gpsDirectory.getString(GpsDirectory.TAG_GPS_IMG_DIRECTION_REF);
+            if (directionRef != null) {
+                metacard.setAttribute(JpegMetacardType.GPS_IMAGE_DIRECTION_REF, directionRef.trim());
+            }
+        }
+        Rational dop = gpsDirectory.getRational(GpsDirectory.TAG_GPS_DOP);
+        if (dop != null) {
+            metacard.setAttribute(JpegMetacardType.GPS_DOP, dop.doubleValue());
         }
     }
 
-    private void convertImageMetadataToMetacardMetadata(Metadata metadata, MetacardImpl metacard) throws JAXBException, MetadataException, CatalogTransformerException {
-        registry.getNamespaces();
-        XMPMeta xmpMeta = XMPMetaFactory.create();
+    /**
+     * Adds the geohash cells of the position. The coarser cells are prefixes of the full-precision hash.
+     */
+    private void addGeoHashes(GeoLocation location, MetacardImpl metacard) {
+        String geohash;
         try {
-            ExifIFD0Directory exifdirectory = metadata.getDirectory(ExifIFD0Directory.class);
-            if (exifdirectory != null) {
-                for (Tag tag : exifdirectory.getTags()) {
-                    handleExifTag(exifdirectory, tag, xmpMeta);
-                }
-            }
+            geohash = GeoHash.encode(location.getLatitude(), location.getLongitude(), GeoHash.MAX_PRECISION);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("GPS position is out of range, not adding geohashes", e);
+            return;
+        }
+        metacard.setAttribute(JpegMetacardType.GEOHASH, geohash);
+        metacard.setAttribute(JpegMetacardType.GEOHASH_3, geohash.substring(0, 3));
+        metacard.setAttribute(JpegMetacardType.GEOHASH_5, geohash.substring(0, 5));
+        metacard.setAttribute(JpegMetacardType.GEOHASH_7, geohash.substring(0, 7));
+    }
 
-            ExifSubIFDDirectory exifSubIFDDirectory = metadata.getDirectory(ExifSubIFDDirectory.class);
-            if (exifSubIFDDirectory != null) {
-                for (Tag tag : exifSubIFDDirectory.getTags()) {
-                    handleExifSubIFDTag(exifSubIFDDirectory, tag, xmpMeta);
-                }
-            }
+    void convertImageMetadataToMetacardMetadata(Metadata metadata, MetacardImpl metacard) throws JAXBException, MetadataException, CatalogTransformerException {
+        convertImageMetadataToMetacardMetadata(metadata, null, metacard, new XmpSettings(mProfile, mMappings, mStreamingXmpWriter));
+    }
 
-            GpsDirectory gpsDirectory = metadata.getDirectory(GpsDirectory.class);
-            if (gpsDirectory != null) {
-                for (Tag tag : gpsDirectory.getTags()) {
-                    handleGpsTag(gpsDirectory, tag, xmpMeta);
-                }
-            }
+    /**
+     * @param embeddedXmp the text of the XMP packet embedded in the image, or null to build XMP from the mappings
+     * @param settings the settings captured when the image was transformed
+     */
+    void convertImageMetadataToMetacardMetadata(Metadata metadata, String embeddedXmp, MetacardImpl metacard, XmpSettings settings) throws JAXBException, MetadataException, CatalogTransformerException {
+        convertImageMetadataToMetacardMetadata(metadata, embeddedXmp, metacard, settings, new ExifDateParser(metadata));
+    }
 
-            IptcDirectory iptcdirectory = metadata.getDirectory(IptcDirectory.class);
-            if (iptcdirectory != null) {
-                for (Tag tag : iptcdirectory.getTags()) {
-                    handleIptcTag(iptcdirectory, tag, xmpMeta);
-                }
+    private void convertImageMetadataToMetacardMetadata(Metadata metadata, String embeddedXmp, MetacardImpl metacard, XmpSettings settings, ExifDateParser dates) throws JAXBException, MetadataException, CatalogTransformerException {
+        try {
+            if ((embeddedXmp != null) && mergeIntoEmbeddedXmp(metadata, embeddedXmp, metacard, settings, dates)) {
+                return;
             }
-            if (metadata.hasErrors()) {
-                xmpMeta.setProperty(XMPConst.NS_XML, ERRORS_PROPERTY, "yes");
+            if (settings.mStreamingWriter) {
+                XMPStreamWriter writer = new XMPStreamWriter();
+                addMappedProperties(metadata, writer, settings, dates);
+                addErrorsProperty(metadata, writer, false);
+                metacard.setMetadata(writer.serialize());
             } else {
-                xmpMeta.setProperty(XMPConst.NS_XML, ERRORS_PROPERTY, "no");
+                registry.getNamespaces();
+                XMPMeta xmpMeta = XMPMetaFactory.create();
+                XMPMetaSink sink = new XMPMetaSink(xmpMeta);
+                addMappedProperties(metadata, sink, settings, dates);
+                addErrorsProperty(metadata, sink, false);
+                metacard.setMetadata(XMPMetaFactory.serializeToString(xmpMeta, new SerializeOptions()));
             }
-            metacard.setMetadata(XMPMetaFactory.serializeToString(xmpMeta, new SerializeOptions()));
         } catch (com.adobe.xmp.XMPException e) {
             LOGGER.warn("XMP Exception setting metadata", e);
             throw new CatalogTransformerException(e);
@@ -329,34 +1200,65 @@ public class JpegInputTransformer implements InputTransformer {
         }
     }
 
-    private void handleExifTag(ExifIFD0Directory exifdirectory, Tag tag, XMPMeta xmpMeta) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
-        for (XMPMapping map : xmpmapIFD0) {
-            if (map.exifTag() == tag.getTagType()) {
-                map.addTagValueToXmp(xmpMeta, exifdirectory);
-            }
+    /**
+     * Merges the mapped properties into the embedded packet, which metadata-extractor has already parsed.
+     *
+     * @return true if the metadata was set, false if the packet could not be parsed
+     */
+    private boolean mergeIntoEmbeddedXmp(Metadata metadata, String embeddedXmp, MetacardImpl metacard, XmpSettings settings, ExifDateParser dates) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
+        XmpDirectory directory = metadata.getDirectory(XmpDirectory.class);
+        XMPMeta xmpMeta = (directory != null) ? directory.getXMPMeta() : null;
+        if (xmpMeta == null) {
+            LOGGER.debug("Embedded XMP packet could not be parsed, building XMP from the mappings");
+            return false;
+        }
+        registry.getNamespaces();
+        XMPMergeSink sink = new XMPMergeSink(xmpMeta);
+        addMappedProperties(metadata, sink, settings, dates);
+        addErrorsProperty(metadata, sink, true);
+        if (sink.getAdded() == 0) {
+            metacard.setMetadata(embeddedXmp);
+        } else {
+            metacard.setMetadata(XMPMetaFactory.serializeToString(xmpMeta, new SerializeOptions()));
         }
+        return true;
     }
 
-    private void handleExifSubIFDTag(ExifSubIFDDirectory exifSubIFDDirectory, Tag tag, XMPMeta xmpMeta) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
-        for (XMPMapping map : xmpmapSubIFD) {
-            if (map.exifTag() == tag.getTagType()) {
-                map.addTagValueToXmp(xmpMeta, exifSubIFDDirectory);
-            }
+    private void addMappedProperties(Metadata metadata, XMPPropertySink xmpMeta, XmpSettings settings, ExifDateParser dates) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
+        XMPMappingTables mappings = settings.mMappings;
+        ExtractionProfile profile = settings.mProfile;
+        if (profile.isEnabled(ExtractionProfile.Feature.XMP_IFD0)) {
+            applyMappings(metadata.getDirectory(ExifIFD0Directory.class), mappings.ifd0, xmpMeta, dates);
+        }
+        if (profile.isEnabled(ExtractionProfile.Feature.XMP_SUB_IFD)) {
+            applyMappings(metadata.getDirectory(ExifSubIFDDirectory.class), mappings.subIFD, xmpMeta, dates);
+        }
+        if (profile.isEnabled(ExtractionProfile.Feature.XMP_GPS)) {
+            applyMappings(metadata.getDirectory(GpsDirectory.class), mappings.gps, xmpMeta, dates);
+        }
+        if (profile.isEnabled(ExtractionProfile.Feature.XMP_IPTC)) {
+            applyMappings(metadata.getDirectory(IptcDirectory.class), mappings.iptc, xmpMeta, dates);
         }
     }
 
-    private void handleGpsTag(GpsDirectory gpsDirectory, Tag tag, XMPMeta xmpMeta) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
-        for (XMPMapping map : xmpmapgps) {
-            if (map.exifTag() == tag.getTagType()) {
-                map.addTagValueToXmp(xmpMeta, gpsDirectory);
-            }
+    /**
+     * @param onlyIfErrors true to leave the property out when there are no errors
+     */
+    private void addErrorsProperty(Metadata metadata, XMPPropertySink xmpMeta, boolean onlyIfErrors) throws com.adobe.xmp.XMPException {
+        if (metadata.hasErrors()) {
+            xmpMeta.setProperty(XMPConst.NS_XML, ERRORS_PROPERTY, "yes");
+        } else if (!onlyIfErrors) {
+            xmpMeta.setProperty(XMPConst.NS_XML, ERRORS_PROPERTY, "no");
         }
     }
 
-    private void handleIptcTag(IptcDirectory iptcDirectory, Tag tag, XMPMeta xmpMeta) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
-        for (XMPMapping map : xmpmapiptc) {
-            if (map.exifTag() == tag.getTagType()) {
-                map.addTagValueToXmp(xmpMeta, iptcDirectory);
+    private void applyMappings(Directory directory, XMPMappingTable mappings, XMPPropertySink xmpMeta, ExifDateParser dates) throws com.adobe.xmp.XMPException, com.drew.metadata.MetadataException {
+        if (directory == null) {
+            return;
+        }
+        for (Tag tag : directory.getTags()) {
+            for (XMPMapping map : mappings.lookup(tag.getTagType())) {
+                map.addTagValueToXmp(xmpMeta, directory, dates);
             }
         }
     }
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ddf.catalog.data.AttributeDescriptor;
+import ddf.catalog.data.AttributeDescriptorImpl;
+import ddf.catalog.data.BasicTypes;
+import ddf.catalog.data.MetacardType;
+import ddf.catalog.data.MetacardTypeImpl;
+
+/**
+ * The metacard type produced by the transformer: the basic metacard plus the GPS and perceptual hash attributes.
+ *
+ * The geohash attributes hold the cell containing the GPS position at several precisions. They are
+ * indexed but not tokenized, so a store can answer "photos in this cell" with an exact match on the
+ * attribute of the right precision, or with a prefix match on {@link #GEOHASH}, instead of testing
+ * each location geometry.
+ *
+ * The perceptual hash is a fingerprint of what the image looks like, for finding near-duplicates with a
+ * {@link PerceptualHashIndex}.
+ *
+ * The type is registered as a {@link MetacardType} service named {@value #NAME}, so catalog providers can
+ * resolve it and index the extra attributes.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public final class JpegMetacardType {
+
+    public static final String NAME = "jpeg";
+
+    /**
+     * Geohash of the GPS position at full precision (12 characters).
+     */
+    public static final String GEOHASH = "geohash";
+
+    /**
+     * Geohash cell of about 156km by 156km.
+     */
+    public static final String GEOHASH_3 = "geohash-3";
+
+    /**
+     * Geohash cell of about 4.9km by 4.9km.
+     */
+    public static final String GEOHASH_5 = "geohash-5";
+
+    /**
+     * Geohash cell of about 153m by 153m.
+     */
+    public static final String GEOHASH_7 = "geohash-7";
+
+    /**
+     * GPS altitude in metres, negative below sea level.
+     */
+    public static final String GPS_ALTITUDE = "gps-altitude";
+
+    /**
+     * Direction the camera was pointing, in degrees.
+     */
+    public static final String GPS_IMAGE_DIRECTION = "gps-image-direction";
+
+    /**
+     * Reference for {@link #GPS_IMAGE_DIRECTION}, "T" for true north or "M" for magnetic north.
+     */
+    public static final String GPS_IMAGE_DIRECTION_REF = "gps-image-direction-ref";
+
+    /**
+     * Dilution of precision of the GPS fix.
+     */
+    public static final String GPS_DOP = "gps-dop";
+
+    /**
+     * 64-bit difference hash of the thumbnail, as 16 hexadecimal digits.
+     */
+    public static final String PERCEPTUAL_HASH = "perceptual-hash";
+
+    /**
+     * Number of images in a Multi-Picture (MPO) file, including the primary image.
+     */
+    public static final String MPF_IMAGE_COUNT = "mpf-image-count";
+
+    /**
+     * Type of each image in a Multi-Picture file, in file order, for example "primary" and "disparity".
+     */
+    public static final String MPF_IMAGE_TYPES = "mpf-image-types";
+
+    /**
+     * Position of an image in its Multi-Picture file, set on the metacards of the images after the first.
+     */
+    public static final String MPF_IMAGE_INDEX = "mpf-image-index";
+
+    /**
+     * Identifier of the metacard of the primary image, set on the metacards of the images after the first.
+     */
+    public static final String MPF_PARENT_ID = "mpf-parent-id";
+
+    public static final MetacardType JPEG_METACARD = createMetacardType();
+
+    private JpegMetacardType() {
+    }
+
+    /**
+     * The metacard type, for registering it as a service.
+     */
+    public static MetacardType getMetacardType() {
+        return JPEG_METACARD;
+    }
+
+    private static MetacardType createMetacardType() {
+        Set<AttributeDescriptor> descriptors = new HashSet<AttributeDescriptor>(BasicTypes.BASIC_METACARD.getAttributeDescriptors());
+        descriptors.add(new AttributeDescriptorImpl(GEOHASH, true, true, false, false, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GEOHASH_3, true, true, false, false, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GEOHASH_5, true, true, false, false, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GEOHASH_7, true, true, false, false, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GPS_ALTITUDE, true, true, false, false, BasicTypes.DOUBLE_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GPS_IMAGE_DIRECTION, true, true, false, false, BasicTypes.DOUBLE_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GPS_IMAGE_DIRECTION_REF, true, true, false, false, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(GPS_DOP, true, true, false, false, BasicTypes.DOUBLE_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(PERCEPTUAL_HASH, true, true, false, false, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(MPF_IMAGE_COUNT, true, true, false, false, BasicTypes.INTEGER_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(MPF_IMAGE_TYPES, true, true, false, true, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(MPF_IMAGE_INDEX, true, true, false, false, BasicTypes.INTEGER_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(MPF_PARENT_ID, true, true, false, false, BasicTypes.STRING_TYPE));
+        return new MetacardTypeImpl(NAME, descriptors);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+/**
+ * Where each header segment of a JPEG is, recorded by {@link JpegHeaderReader} in the same pass that
+ * reads the segments.
+ *
+ * Offsets are those of the segment payloads (after the marker and the length), counted from the SOI
+ * marker. Skipped segments are recorded too, so the index describes the whole header whether or not the
+ * payloads were kept. Readers such as {@link MpfIndex}, whose data holds offsets relative to a segment,
+ * use it to find their place in the file.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public final class JpegSegmentIndex {
+
+    private int mCount = 0;
+    private int[] mMarkers = new int[16];
+    private long[] mOffsets = new long[16];
+    private int[] mLengths = new int[16];
+    private byte[][] mPayloads = new byte[16][];
+
+    JpegSegmentIndex() {
+    }
+
+    void add(int marker, long offset, int length, byte[] payload) {
+        if (mCount == mMarkers.length) {
+            int capacity = mCount * 2;
+            int[] markers = new int[capacity];
+            System.arraycopy(mMarkers, 0, markers, 0, mCount);
+            mMarkers = markers;
+            long[] offsets = new long[capacity];
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            mOffsets = offsets;
+            int[] lengths = new int[capacity];
+            System.arraycopy(mLengths, 0, lengths, 0, mCount);
+            mLengths = lengths;
+            byte[][] payloads = new byte[capacity][];
+            System.arraycopy(mPayloads, 0, payloads, 0, mCount);
+            mPayloads = payloads;
+        }
+        mMarkers[mCount] = marker;
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mPayloads[mCount] = payload;
+        mCount++;
+    }
+
+    /**
+     * The number of segments in the header.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * The marker of a segment, such as 0xE1 for APP1.
+     */
+    public int getMarker(int segment) {
+        return mMarkers[segment];
+    }
+
+    /**
+     * The offset of the payload of a segment from the SOI marker.
+     */
+    public long getOffset(int segment) {
+        return mOffsets[segment];
+    }
+
+    /**
+     * The size of the payload of a segment.
+     */
+    public int getLength(int segment) {
+        return mLengths[segment];
+    }
+
+    /**
+     * Whether the payload of a segment was kept, rather than skipped or dropped.
+     */
+    public boolean isKept(int segment) {
+        return mPayloads[segment] != null;
+    }
+
+    /**
+     * The payload of a segment, shared with the segment data, or null if it was not kept.
+     */
+    byte[] getPayload(int segment) {
+        return mPayloads[segment];
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.Serializable;
+
+import com.drew.metadata.Metadata;
+
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.AttributeImpl;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardImpl;
+import ddf.catalog.data.MetacardType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metacard that builds its XMP metadata and its EXIF thumbnail the first time they are read.
+ *
+ * Keeps the parsed {@link Metadata} until both attributes have been built (or explicitly set), then
+ * releases it. The XMP is built with the profile, mappings and writer in force when the image was
+ * transformed, not those of the transformer at the time of access.
+ *
+ * Each attribute is built at most once, outside the metacard's lock, and then published under it. Every
+ * attribute read and write takes that lock too, so readers never see the attribute map part way through
+ * a change, and reading other attributes does not wait for a build. Serializing the metacard builds
+ * everything and writes a plain {@link MetacardImpl}.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class LazyJpegMetacard extends StoredThumbnailMetacard {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LazyJpegMetacard.class);
+
+    private transient JpegInputTransformer mTransformer;
+    private transient Metadata mImageMetadata;
+    private transient String mEmbeddedXmp;
+    private transient JpegInputTransformer.XmpSettings mXmpSettings;
+    private final transient Object mMetadataBuildLock = new Object();
+    private final transient Object mThumbnailBuildLock = new Object();
+    private volatile boolean mMetadataBuilt = false;
+    private volatile boolean mThumbnailBuilt = false;
+
+    LazyJpegMetacard(MetacardType type, Metadata imageMetadata, String embeddedXmp, JpegInputTransformer.XmpSettings xmpSettings, ThumbnailStore thumbnailStore, JpegInputTransformer transformer) {
+        super(type, thumbnailStore);
+        mImageMetadata = imageMetadata;
+        mEmbeddedXmp = embeddedXmp;
+        mXmpSettings = xmpSettings;
+        mTransformer = transformer;
+    }
+
+    @Override
+    public Attribute getAttribute(String name) {
+        if (Metacard.METADATA.equals(name)) {
+            buildMetadata();
+        } else if (Metacard.THUMBNAIL.equals(name)) {
+            buildThumbnail();
+        }
+        synchronized (this) {
+            return super.getAttribute(name);
+        }
+    }
+
+    @Override
+    public String getMetadata() {
+        buildMetadata();
+        synchronized (this) {
+            return super.getMetadata();
+        }
+    }
+
+    @Override
+    public byte[] getThumbnail() {
+        buildThumbnail();
+        synchronized (this) {
+            return super.getThumbnail();
+        }
+    }
+
+    @Override
+    public synchronized void setAttribute(Attribute attribute) {
+        markBuilt(attribute.getName());
+        super.setAttribute(attribute);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Serializable value) {
+        markBuilt(name);
+        super.setAttribute(name, value);
+    }
+
+    /**
+     * Whether the XMP metadata has been built (or set) yet.
+     */
+    public boolean isMetadataBuilt() {
+        return mMetadataBuilt;
+    }
+
+    /**
+     * Whether the thumbnail has been built (or set) yet.
+     */
+    public boolean isThumbnailBuilt() {
+        return mThumbnailBuilt;
+    }
+
+    /**
+     * Builds the XMP into a scratch metacard, so the attribute map is only changed once it is done.
+     */
+    private void buildMetadata() {
+        if (mMetadataBuilt) {
+            return;
+        }
+        synchronized (mMetadataBuildLock) {
+            JpegInputTransformer transformer;
+            Metadata imageMetadata;
+            String embeddedXmp;
+            JpegInputTransformer.XmpSettings xmpSettings;
+            synchronized (this) {
+                if (mMetadataBuilt) {
+                    return;
+                }
+                transformer = mTransformer;
+                imageMetadata = mImageMetadata;
+                embeddedXmp = mEmbeddedXmp;
+                xmpSettings = mXmpSettings;
+            }
+            MetacardImpl built = new MetacardImpl(getMetacardType());
+            try {
+                transformer.convertImageMetadataToMetacardMetadata(imageMetadata, embeddedXmp, built, xmpSettings);
+            } catch (Exception e) {
+                LOGGER.warn("Could not build XMP metadata on first access", e);
+            }
+            synchronized (this) {
+                // Unless it was set explicitly while being built
+                if (!mMetadataBuilt) {
+                    super.setAttribute(new AttributeImpl(Metacard.METADATA, built.getMetadata()));
+                    mMetadataBuilt = true;
+                    releaseIfDone();
+                }
+            }
+        }
+    }
+
+    private void buildThumbnail() {
+        if (mThumbnailBuilt) {
+            return;
+        }
+        synchronized (mThumbnailBuildLock) {
+            JpegInputTransformer transformer;
+            Metadata imageMetadata;
+            synchronized (this) {
+                if (mThumbnailBuilt) {
+                    return;
+                }
+                transformer = mTransformer;
+                imageMetadata = mImageMetadata;
+            }
+            MetacardImpl built = new MetacardImpl(getMetacardType());
+            transformer.generateThumbnail(imageMetadata, built);
+            synchronized (this) {
+                if (!mThumbnailBuilt) {
+                    super.setAttribute(new AttributeImpl(Metacard.THUMBNAIL, built.getThumbnail()));
+                    mThumbnailBuilt = true;
+                    releaseIfDone();
+                }
+            }
+        }
+    }
+
+    private void markBuilt(String name) {
+        if (Metacard.METADATA.equals(name)) {
+            mMetadataBuilt = true;
+        } else if (Metacard.THUMBNAIL.equals(name)) {
+            mThumbnailBuilt = true;
+        }
+        releaseIfDone();
+    }
+
+    private void releaseIfDone() {
+        if (mMetadataBuilt && mThumbnailBuilt) {
+            mImageMetadata = null;
+            mEmbeddedXmp = null;
+            mXmpSettings = null;
+            mTransformer = null;
+        }
+    }
+
+    private Object writeReplace() {
+        buildMetadata();
+        buildThumbnail();
+        return MetacardCache.copy(this, getId());
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts the bytes read or skipped from the underlying stream, and ends after a limit.
+ *
+ * Skips are passed on to the underlying stream, so a file stream seeks rather than reads. Closing this
+ * stream leaves the underlying stream open, so the next part of it can be read after this one.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class LimitedInputStream extends FilterInputStream {
+
+    private final long mLimit;
+    private long mPosition = 0;
+
+    /**
+     * @param limit the number of bytes after which the stream ends, or Long.MAX_VALUE to only count them
+     */
+    LimitedInputStream(InputStream input, long limit) {
+        super(input);
+        mLimit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition >= mLimit) {
+            return -1;
+        }
+        int b = in.read();
+        if (b >= 0) {
+            mPosition++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mPosition >= mLimit) {
+            return -1;
+        }
+        int count = in.read(buffer, offset, (int) Math.min(length, mLimit - mPosition));
+        if (count > 0) {
+            mPosition += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = in.skip(Math.min(count, mLimit - mPosition));
+        if (skipped > 0) {
+            mPosition += skipped;
+        }
+        return Math.max(skipped, 0);
+    }
+
+    /**
+     * Skips forward to a position, reading where the underlying stream will not skip.
+     *
+     * @return false if the stream ended first
+     */
+    boolean skipTo(long position) throws IOException {
+        byte[] buffer = null;
+        while (mPosition < position) {
+            if (skip(position - mPosition) > 0) {
+                continue;
+            }
+            if (buffer == null) {
+                buffer = new byte[8192];
+            }
+            if (read(buffer, 0, (int) Math.min(position - mPosition, buffer.length)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), mLimit - mPosition);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * The number of bytes read or skipped so far.
+     */
+    long getPosition() {
+        return mPosition;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.AttributeDescriptor;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardImpl;
+
+/**
+ * Size-bounded LRU cache of transformed metacards, keyed by the hash of the JPEG header.
+ *
+ * The cache holds private template copies, which are never handed out. Each hit returns a fresh copy of
+ * the template with the caller's id, so callers can modify what they get back. Attribute values
+ * (including the thumbnail bytes) are shared between the copies and must be treated as read-only.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class MetacardCache {
+
+    private final int mMaxEntries;
+    private final Map<JpegHeaderReader.HeaderHash, Metacard> mTemplates;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries the number of metacards to keep, the least recently used one is evicted beyond this
+     */
+    public MetacardCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        mMaxEntries = maxEntries;
+        mTemplates = new LinkedHashMap<JpegHeaderReader.HeaderHash, Metacard>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<JpegHeaderReader.HeaderHash, Metacard> eldest) {
+                if (size() > mMaxEntries) {
+                    mEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks up a header, returning a copy of the cached metacard with the given id, or null on a miss.
+     */
+    public Metacard get(JpegHeaderReader.HeaderHash key, String id) {
+        Metacard template;
+        synchronized (this) {
+            template = mTemplates.get(key);
+            if (template == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return copy(template, id);
+    }
+
+    /**
+     * Stores a copy of a freshly transformed metacard as the template for a header.
+     */
+    public void put(JpegHeaderReader.HeaderHash key, Metacard metacard) {
+        Metacard template = copy(metacard, null);
+        synchronized (this) {
+            mTemplates.put(key, template);
+        }
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized int size() {
+        return mTemplates.size();
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    public synchronized void clear() {
+        mTemplates.clear();
+    }
+
+    static Metacard copy(Metacard source, String id) {
+        // The copy constructor of MetacardImpl wraps its argument rather than copying it, so copy by hand
+        MetacardImpl copy = new MetacardImpl(source.getMetacardType());
+        for (AttributeDescriptor descriptor : source.getMetacardType().getAttributeDescriptors()) {
+            Attribute attribute = source.getAttribute(descriptor.getName());
+            if (attribute != null) {
+                copy.setAttribute(attribute);
+            }
+        }
+        copy.setId(id);
+        return copy;
+    }
+}
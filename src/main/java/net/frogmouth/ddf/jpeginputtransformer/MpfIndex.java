@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the image list of a Multi-Picture Format (CIPA DC-007) file, such as an MPO stereo image.
+ *
+ * The first image of the file carries an APP2 segment starting with "MPF\0", followed by a TIFF-style
+ * structure whose MP Index IFD lists every image: its type, its size and its offset. The offsets are
+ * relative to the TIFF header inside that segment, so they are turned into file offsets with the
+ * position recorded in the {@link JpegSegmentIndex}. The other images are complete JPEGs placed after
+ * the first one, and can be reached without reading the image data in between.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class MpfIndex {
+
+    private static final int MARKER_APP2 = 0xE2;
+    private static final byte[] MPF_IDENTIFIER = {'M', 'P', 'F', 0};
+
+    private static final int TAG_NUMBER_OF_IMAGES = 0xB001;
+    private static final int TAG_MP_ENTRY = 0xB002;
+    private static final int MP_ENTRY_SIZE = 16;
+
+    /**
+     * Far more than any camera writes, so a corrupt count cannot make the index huge.
+     */
+    private static final int MAX_IMAGES = 256;
+
+    private MpfIndex() {
+    }
+
+    /**
+     * One image of a Multi-Picture file.
+     */
+    static final class Entry {
+        final int mIndex;
+        final int mType;
+        final long mOffset;
+        final long mSize;
+
+        Entry(int index, int type, long offset, long size) {
+            mIndex = index;
+            mType = type;
+            mOffset = offset;
+            mSize = size;
+        }
+
+        /**
+         * The MP type code as a name, for example "disparity" for the second view of a stereo pair.
+         */
+        String getTypeName() {
+            switch (mType & 0xFFFFFF) {
+                case 0x030000:
+                    return "primary";
+                case 0x010001:
+                    return "large-thumbnail-vga";
+                case 0x010002:
+                    return "large-thumbnail-full-hd";
+                case 0x020001:
+                    return "panorama";
+                case 0x020002:
+                    return "disparity";
+                case 0x020003:
+                    return "multi-angle";
+                case 0x000000:
+                    return "undefined";
+                default:
+                    return "0x" + Integer.toHexString(mType & 0xFFFFFF);
+            }
+        }
+    }
+
+    /**
+     * Whether a segment is an APP2 segment holding Multi-Picture data.
+     *
+     * @param head the first bytes of the segment payload
+     * @param headLength the number of bytes in head
+     */
+    static boolean isMpfSegment(int marker, byte[] head, int headLength) {
+        if ((marker != MARKER_APP2) || (headLength < MPF_IDENTIFIER.length)) {
+            return false;
+        }
+        for (int i = 0; i < MPF_IDENTIFIER.length; i++) {
+            if (head[i] != MPF_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The images listed in the first kept MPF segment of a header, or an empty list if there is none or
+     * it cannot be read.
+     */
+    static List<Entry> find(JpegSegmentIndex index) {
+        for (int i = 0; i < index.size(); i++) {
+            byte[] payload = index.getPayload(i);
+            if ((payload != null) && isMpfSegment(index.getMarker(i), payload, payload.length)) {
+                return read(payload, index.getOffset(i));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Reads the MP Index IFD of an MPF segment.
+     *
+     * @param payload the segment payload, starting with the MPF identifier
+     * @param payloadOffset the offset of the payload in the file
+     */
+    static List<Entry> read(byte[] payload, long payloadOffset) {
+        List<Entry> entries = new ArrayList<Entry>();
+        int tiff = MPF_IDENTIFIER.length;
+        if (payload.length < tiff + 8) {
+            return entries;
+        }
+        boolean littleEndian = (payload[tiff] == 'I');
+        long ifd = tiff + uint32(payload, tiff + 4, littleEndian);
+        if (ifd + 2 > payload.length) {
+            return entries;
+        }
+        int count = uint16(payload, (int) ifd, littleEndian);
+        long numberOfImages = 0;
+        long entryOffset = -1;
+        long entryLength = 0;
+        int entry = (int) ifd + 2;
+        for (int i = 0; (i < count) && (entry + 12 <= payload.length); i++, entry += 12) {
+            int tag = uint16(payload, entry, littleEndian);
+            if (tag == TAG_NUMBER_OF_IMAGES) {
+                numberOfImages = uint32(payload, entry + 8, littleEndian);
+            } else if (tag == TAG_MP_ENTRY) {
+                entryLength = uint32(payload, entry + 4, littleEndian);
+                entryOffset = tiff + uint32(payload, entry + 8, littleEndian);
+            }
+        }
+        if ((entryOffset < 0) || (numberOfImages <= 0)) {
+            return entries;
+        }
+        long images = Math.min(Math.min(numberOfImages, entryLength / MP_ENTRY_SIZE), MAX_IMAGES);
+        for (int i = 0; (i < images) && (entryOffset + ((i + 1) * MP_ENTRY_SIZE) <= payload.length); i++) {
+            int position = (int) entryOffset + (i * MP_ENTRY_SIZE);
+            int type = (int) uint32(payload, position, littleEndian);
+            long size = uint32(payload, position + 4, littleEndian);
+            long offset = uint32(payload, position + 8, littleEndian);
+            if ((i > 0) && ((offset == 0) || (size == 0))) {
+                // Listed, but not stored in this file
+                continue;
+            }
+            // The first image starts at the start of the file, the others are relative to the TIFF header
+            long fileOffset = (i == 0) ? 0 : payloadOffset + tiff + offset;
+            entries.add(new Entry(i, type, fileOffset, size));
+        }
+        return entries;
+    }
+
+    private static int uint16(byte[] bytes, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+        }
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static long uint32(byte[] bytes, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return ((long) uint16(bytes, offset + 2, true) << 16) | uint16(bytes, offset, true);
+        }
+        return ((long) uint16(bytes, offset, false) << 16) | uint16(bytes, offset + 2, false);
+    }
+}
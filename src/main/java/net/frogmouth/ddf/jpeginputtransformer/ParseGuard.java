@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The resource budget for transforming one JPEG.
+ *
+ * The budget has four limits, each disabled by a value of zero:
+ * <ul>
+ * <li>the number of header bytes read, including fill bytes and skipped segments</li>
+ * <li>the size of a single header segment</li>
+ * <li>the number of tags in an EXIF directory, or of records in the IPTC block</li>
+ * <li>a wall-clock deadline for the whole transform</li>
+ * </ul>
+ * The tag counts are taken from the raw EXIF and IPTC segments before metadata-extractor sees them, by
+ * walking the IFD0, Exif, GPS, Interoperability and IFD1 directories (following each at most once) and the
+ * IPTC records of the Photoshop block. That keeps a hostile directory from being parsed at all.
+ *
+ * In strict mode, exceeding a limit throws {@link ParseLimitExceededException}. In partial mode, the
+ * offending segment is dropped (or, for the byte budget and the deadline, the rest of the header or the
+ * remaining stages are skipped) and the transform carries on with what it has. An instance is used by
+ * one thread for one transform.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class ParseGuard {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParseGuard.class);
+
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP13 = 0xED;
+
+    private static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final byte[] PHOTOSHOP_IDENTIFIER = {'P', 'h', 'o', 't', 'o', 's', 'h', 'o', 'p', ' ', '3', '.', '0', 0};
+    private static final byte[] RESOURCE_SIGNATURE = {'8', 'B', 'I', 'M'};
+    private static final int RESOURCE_IPTC = 0x0404;
+    private static final int IPTC_TAG_MARKER = 0x1C;
+
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_GPS_IFD_POINTER = 0x8825;
+    private static final int TAG_INTEROP_IFD_POINTER = 0xA005;
+    private static final int MAX_IFDS = 16;
+
+    private final long mMaxHeaderBytes;
+    private final int mMaxSegmentBytes;
+    private final int mMaxTagsPerDirectory;
+    private final long mDeadlineNanos;
+    private final boolean mPartial;
+    private ParseLimitExceededException.Limit mLimitHit = null;
+
+    /**
+     * Starts the clock on a budget.
+     *
+     * @param maxHeaderBytes header bytes that may be read, or zero for no limit
+     * @param maxSegmentBytes size of the largest header segment kept, or zero for no limit
+     * @param maxTagsPerDirectory tags in the largest EXIF directory or IPTC block kept, or zero for no limit
+     * @param timeoutMillis time allowed for the transform, or zero for no limit
+     * @param partial true to carry on without whatever exceeds a limit, false to fail
+     */
+    ParseGuard(long maxHeaderBytes, int maxSegmentBytes, int maxTagsPerDirectory, long timeoutMillis, boolean partial) {
+        mMaxHeaderBytes = maxHeaderBytes;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxTagsPerDirectory = maxTagsPerDirectory;
+        mDeadlineNanos = (timeoutMillis > 0) ? System.nanoTime() + (timeoutMillis * 1000000L) : 0;
+        mPartial = partial;
+    }
+
+    /**
+     * Whether more of the header may be read.
+     *
+     * @param bytesRead the number of header bytes read so far, plus any about to be read
+     */
+    boolean allowHeaderBytes(long bytesRead) throws ParseLimitExceededException {
+        if ((mMaxHeaderBytes > 0) && (bytesRead > mMaxHeaderBytes)) {
+            return exceeded(ParseLimitExceededException.Limit.HEADER_BYTES, "JPEG header is larger than " + mMaxHeaderBytes + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Whether a header segment of the given size may be kept.
+     */
+    boolean allowSegment(int marker, int length) throws ParseLimitExceededException {
+        if ((mMaxSegmentBytes > 0) && (length > mMaxSegmentBytes)) {
+            return exceeded(ParseLimitExceededException.Limit.SEGMENT_BYTES, "segment 0x" + Integer.toHexString(marker) + " of " + length + " bytes is larger than " + mMaxSegmentBytes + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Whether the directories in a segment are small enough for the segment to be kept.
+     */
+    boolean allowPayload(int marker, byte[] payload) throws ParseLimitExceededException {
+        if (mMaxTagsPerDirectory <= 0) {
+            return true;
+        }
+        int tags = 0;
+        if (marker == MARKER_APP1) {
+            tags = largestExifDirectory(payload);
+        } else if (marker == MARKER_APP13) {
+            tags = iptcRecordCount(payload);
+        }
+        if (tags > mMaxTagsPerDirectory) {
+            return exceeded(ParseLimitExceededException.Limit.TAGS_PER_DIRECTORY, "segment 0x" + Integer.toHexString(marker) + " has a directory of " + tags + " tags, more than " + mMaxTagsPerDirectory);
+        }
+        return true;
+    }
+
+    /**
+     * Whether there is time left for another step of the transform.
+     */
+    boolean withinDeadline() throws ParseLimitExceededException {
+        if (mDeadlineNanos == 0) {
+            return true;
+        }
+        if (mLimitHit == ParseLimitExceededException.Limit.DEADLINE) {
+            return false;
+        }
+        if (System.nanoTime() - mDeadlineNanos > 0) {
+            return exceeded(ParseLimitExceededException.Limit.DEADLINE, "JPEG transform did not finish in time");
+        }
+        return true;
+    }
+
+    /**
+     * The deadline as a {@link System#nanoTime()} value, or zero if there is none.
+     */
+    long getDeadlineNanos() {
+        return mDeadlineNanos;
+    }
+
+    /**
+     * The first limit exceeded in partial mode, or null if the transform stayed within its budget.
+     */
+    ParseLimitExceededException.Limit getLimitHit() {
+        return mLimitHit;
+    }
+
+    private boolean exceeded(ParseLimitExceededException.Limit limit, String message) throws ParseLimitExceededException {
+        if (!mPartial) {
+            throw new ParseLimitExceededException(limit, message);
+        }
+        LOGGER.debug("{}, continuing with partial metadata", message);
+        if (mLimitHit == null) {
+            mLimitHit = limit;
+        }
+        return false;
+    }
+
+    /**
+     * The largest entry count of the IFDs in an EXIF segment.
+     */
+    static int largestExifDirectory(byte[] payload) {
+        int tiff = EXIF_IDENTIFIER.length;
+        if (!startsWith(payload, EXIF_IDENTIFIER) || (payload.length < tiff + 8)) {
+            return 0;
+        }
+        boolean littleEndian = (payload[tiff] == 'I');
+        long[] pending = new long[MAX_IFDS];
+        long[] visited = new long[MAX_IFDS];
+        int pendingCount = 0;
+        int visitedCount = 0;
+        pending[pendingCount++] = uint32(payload, tiff + 4, littleEndian);
+        int largest = 0;
+        while ((pendingCount > 0) && (visitedCount < MAX_IFDS)) {
+            long offset = pending[--pendingCount];
+            if ((offset < 8) || (offset > payload.length - tiff - 2) || contains(visited, visitedCount, offset)) {
+                continue;
+            }
+            visited[visitedCount++] = offset;
+            int ifd = tiff + (int) offset;
+            int count = uint16(payload, ifd, littleEndian);
+            largest = Math.max(largest, count);
+            int entry = ifd + 2;
+            for (int i = 0; (i < count) && (entry + 12 <= payload.length); i++, entry += 12) {
+                int tag = uint16(payload, entry, littleEndian);
+                if (((tag == TAG_EXIF_IFD_POINTER) || (tag == TAG_GPS_IFD_POINTER) || (tag == TAG_INTEROP_IFD_POINTER)) && (pendingCount < MAX_IFDS)) {
+                    pending[pendingCount++] = uint32(payload, entry + 8, littleEndian);
+                }
+            }
+            if ((entry + 4 <= payload.length) && (pendingCount < MAX_IFDS)) {
+                pending[pendingCount++] = uint32(payload, entry, littleEndian);
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * The number of IPTC records in the Photoshop resource block of an APP13 segment.
+     */
+    static int iptcRecordCount(byte[] payload) {
+        if (!startsWith(payload, PHOTOSHOP_IDENTIFIER)) {
+            return 0;
+        }
+        int records = 0;
+        int pos = PHOTOSHOP_IDENTIFIER.length;
+        while (pos + 7 <= payload.length) {
+            for (int i = 0; i < RESOURCE_SIGNATURE.length; i++) {
+                if (payload[pos + i] != RESOURCE_SIGNATURE[i]) {
+                    return records;
+                }
+            }
+            int id = uint16(payload, pos + 4, false);
+            // The resource name is a Pascal string, padded to an even length
+            int nameLength = payload[pos + 6] & 0xFF;
+            pos += 6 + ((nameLength + 2) & ~1);
+            if (pos + 4 > payload.length) {
+                return records;
+            }
+            long size = Math.min(uint32(payload, pos, false), payload.length - pos - 4);
+            pos += 4;
+            if (id == RESOURCE_IPTC) {
+                records += countIptcRecords(payload, pos, pos + (int) size);
+            }
+            pos += (int) size + (int) (size & 1);
+        }
+        return records;
+    }
+
+    private static int countIptcRecords(byte[] payload, int start, int end) {
+        int records = 0;
+        int pos = start;
+        while ((pos + 5 <= end) && ((payload[pos] & 0xFF) == IPTC_TAG_MARKER)) {
+            long length = uint16(payload, pos + 3, false);
+            pos += 5;
+            if ((length & 0x8000) != 0) {
+                // Extended dataset, the low bits give the size of the length field
+                int lengthOfLength = (int) (length & 0x7FFF);
+                if ((lengthOfLength > 4) || (pos + lengthOfLength > end)) {
+                    return records;
+                }
+                length = 0;
+                for (int i = 0; i < lengthOfLength; i++) {
+                    length = (length << 8) | (payload[pos++] & 0xFF);
+                }
+            }
+            records++;
+            if (length > end - pos) {
+                return records;
+            }
+            pos += (int) length;
+        }
+        return records;
+    }
+
+    private static boolean startsWith(byte[] payload, byte[] prefix) {
+        if (payload.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (payload[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(long[] values, int count, long value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int uint16(byte[] bytes, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+        }
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static long uint32(byte[] bytes, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return ((long) uint16(bytes, offset + 2, true) << 16) | uint16(bytes, offset, true);
+        }
+        return ((long) uint16(bytes, offset, false) << 16) | uint16(bytes, offset + 2, false);
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import com.drew.imaging.jpeg.JpegProcessingException;
+
+/**
+ * Thrown when a JPEG exceeds one of the limits of a {@link ParseGuard}. It is the cause of the
+ * {@link ddf.catalog.transform.CatalogTransformerException} thrown by the transformer.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class ParseLimitExceededException extends JpegProcessingException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The limits that can be exceeded.
+     */
+    public enum Limit {
+        HEADER_BYTES,
+        SEGMENT_BYTES,
+        TAGS_PER_DIRECTORY,
+        DEADLINE
+    }
+
+    private final Limit mLimit;
+
+    public ParseLimitExceededException(Limit limit, String message) {
+        super(message);
+        mLimit = limit;
+    }
+
+    public Limit getLimit() {
+        return mLimit;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * 64-bit difference hash (dHash) of an image.
+ *
+ * The image is reduced to 9x8 grey levels by averaging blocks of pixels, and each bit of the hash records
+ * whether a cell is brighter than its right-hand neighbour. Re-encoding, resizing and small exposure
+ * changes leave most bits alone, so the Hamming distance between two hashes measures how different two
+ * images look. Distances up to about 10 usually mean the same scene.
+ *
+ * The hash is taken from the thumbnail, which is at most a few hundred pixels across and cheap to decode.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class PerceptualHash {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Hashes a JPEG or other ImageIO-readable image.
+     *
+     * @throws IOException if the image cannot be decoded
+     */
+    static long dHash(byte[] image) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+        if (decoded == null) {
+            throw new IOException("No image reader for thumbnail");
+        }
+        return dHash(decoded);
+    }
+
+    static long dHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        long[] sums = new long[WIDTH * HEIGHT];
+        int[] counts = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int cellRow = (y * HEIGHT) / height;
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                // ITU-R BT.601 luma, in integer arithmetic
+                int luma = ((((rgb >> 16) & 0xFF) * 299) + (((rgb >> 8) & 0xFF) * 587) + ((rgb & 0xFF) * 114)) / 1000;
+                int cell = (cellRow * WIDTH) + ((x * WIDTH) / width);
+                sums[cell] += luma;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                int cell = (y * WIDTH) + x;
+                // Compare the averages without dividing: left * rightCount > right * leftCount
+                hash <<= 1;
+                if (sums[cell] * Math.max(counts[cell + 1], 1) > sums[cell + 1] * Math.max(counts[cell], 1)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * The hash as 16 hexadecimal digits, the form stored in the metacard.
+     */
+    static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Reads the 16 hexadecimal digits written by {@link #toHex(long)}.
+     *
+     * @throws NumberFormatException if the text is not a hash
+     */
+    static long fromHex(String hex) {
+        if (hex.length() != 16) {
+            throw new NumberFormatException("Perceptual hash must be 16 hex digits: " + hex);
+        }
+        return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+    }
+}
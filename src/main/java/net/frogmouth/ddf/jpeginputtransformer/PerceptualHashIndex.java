@@ -0,0 +1,578 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.Metacard;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of perceptual hashes, for finding near-duplicate images.
+ *
+ * The hashes are kept in a BK-tree under the Hamming distance: each child hangs off its parent at their
+ * distance, so by the triangle inequality a search of radius r only descends into children whose distance
+ * is within r of the query's distance to the parent. For the small radii used for near-duplicates that
+ * visits a small fraction of the tree.
+ *
+ * Removing an id leaves its node in place as a signpost for the nodes below it. The index can be saved to
+ * a file, which holds the tree as it is, so loading it takes one pass with no distance computations. With
+ * a save interval it is also saved after that many changes, so an unclean shutdown loses only the last few.
+ * Those saves copy the tree to memory under the index lock, and write the file on a background thread,
+ * so adds and searches never wait for the disk.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class PerceptualHashIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PerceptualHashIndex.class);
+
+    private static final int MAGIC = 0x50484931; // "PHI1"
+    private static final String[] NO_IDS = new String[0];
+
+    private final File mFile;
+    private Node mRoot = null;
+    private final Map<String, Long> mHashes = new HashMap<String, Long>();
+    private int mSaveInterval = 0;
+    private int mUnsavedChanges = 0;
+    private ExecutorService mSaver = null;
+    private boolean mSaveQueued = false;
+    private boolean mClosed = false;
+    /**
+     * Held while a snapshot is taken and written, so the file is written in snapshot order.
+     */
+    private final Object mFileLock = new Object();
+
+    /**
+     * Creates an index that is only held in memory.
+     */
+    public PerceptualHashIndex() {
+        this(null);
+    }
+
+    /**
+     * Creates an index that {@link #load()} and {@link #save()} keep in a file.
+     */
+    public PerceptualHashIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Sets the number of additions and removals after which the index is saved to its file, on a background
+     * thread. Zero (the default) only saves when {@link #save()} or {@link #close()} is called.
+     */
+    public synchronized void setSaveInterval(int saveInterval) {
+        mSaveInterval = saveInterval;
+    }
+
+    /**
+     * An image found by a search.
+     */
+    public static final class Match implements Comparable<Match> {
+        private final String mId;
+        private final long mHash;
+        private final int mDistance;
+
+        Match(String id, long hash, int distance) {
+            mId = id;
+            mHash = hash;
+            mDistance = distance;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public long getHash() {
+            return mHash;
+        }
+
+        /**
+         * The number of bits in which the hash differs from the one searched for.
+         */
+        public int getDistance() {
+            return mDistance;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            if (mDistance != other.mDistance) {
+                return (mDistance < other.mDistance) ? -1 : 1;
+            }
+            return mId.compareTo(other.mId);
+        }
+
+        @Override
+        public String toString() {
+            return mId + " (" + mDistance + ")";
+        }
+    }
+
+    private static final class Node {
+        final long mHash;
+        String[] mIds = NO_IDS;
+        byte[] mDistances = null;
+        Node[] mChildren = null;
+        int mChildCount = 0;
+
+        Node(long hash) {
+            mHash = hash;
+        }
+
+        Node getChild(int distance) {
+            for (int i = 0; i < mChildCount; i++) {
+                if (mDistances[i] == distance) {
+                    return mChildren[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(int distance, Node child) {
+            if (mChildren == null) {
+                mDistances = new byte[2];
+                mChildren = new Node[2];
+            } else if (mChildCount == mChildren.length) {
+                byte[] distances = new byte[mChildCount * 2];
+                System.arraycopy(mDistances, 0, distances, 0, mChildCount);
+                mDistances = distances;
+                Node[] children = new Node[mChildCount * 2];
+                System.arraycopy(mChildren, 0, children, 0, mChildCount);
+                mChildren = children;
+            }
+            mDistances[mChildCount] = (byte) distance;
+            mChildren[mChildCount] = child;
+            mChildCount++;
+        }
+
+        void addId(String id) {
+            String[] ids = new String[mIds.length + 1];
+            System.arraycopy(mIds, 0, ids, 0, mIds.length);
+            ids[mIds.length] = id;
+            mIds = ids;
+        }
+
+        void removeId(String id) {
+            for (int i = 0; i < mIds.length; i++) {
+                if (mIds[i].equals(id)) {
+                    String[] ids = (mIds.length == 1) ? NO_IDS : new String[mIds.length - 1];
+                    System.arraycopy(mIds, 0, ids, 0, i);
+                    System.arraycopy(mIds, i + 1, ids, i, mIds.length - i - 1);
+                    mIds = ids;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an image, replacing any earlier hash for the same id.
+     */
+    public synchronized void add(String id, long hash) {
+        Long previous = mHashes.put(id, hash);
+        if (previous != null) {
+            if (previous.longValue() == hash) {
+                return;
+            }
+            findNode(previous.longValue()).removeId(id);
+        }
+        insert(id, hash);
+        changed();
+    }
+
+    private void insert(String id, long hash) {
+        if (mRoot == null) {
+            mRoot = new Node(hash);
+            mRoot.addId(id);
+            return;
+        }
+        Node node = mRoot;
+        while (true) {
+            int distance = PerceptualHash.distance(hash, node.mHash);
+            if (distance == 0) {
+                node.addId(id);
+                return;
+            }
+            Node child = node.getChild(distance);
+            if (child == null) {
+                child = new Node(hash);
+                child.addId(id);
+                node.addChild(distance, child);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private void changed() {
+        mUnsavedChanges++;
+        if ((mSaveInterval > 0) && (mUnsavedChanges >= mSaveInterval) && (mFile != null) && !mSaveQueued && !mClosed) {
+            if (mSaver == null) {
+                mSaver = Executors.newSingleThreadExecutor(new DaemonThreadFactory("perceptual-hash-index-saver"));
+            }
+            mSaveQueued = true;
+            mSaver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds a metacard that has an id and a {@link JpegMetacardType#PERCEPTUAL_HASH}. Any other metacard is ignored.
+     */
+    public void add(Metacard metacard) {
+        Attribute hash = metacard.getAttribute(JpegMetacardType.PERCEPTUAL_HASH);
+        if ((metacard.getId() == null) || (hash == null) || !(hash.getValue() instanceof String)) {
+            return;
+        }
+        try {
+            add(metacard.getId(), PerceptualHash.fromHex((String) hash.getValue()));
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Not indexing metacard " + metacard.getId() + " with a malformed perceptual hash", e);
+        }
+    }
+
+    /**
+     * Removes an image. Unknown ids are ignored.
+     */
+    public synchronized void remove(String id) {
+        Long hash = mHashes.remove(id);
+        if (hash != null) {
+            findNode(hash.longValue()).removeId(id);
+            changed();
+        }
+    }
+
+    /**
+     * Finds the images whose hashes are within a Hamming distance of a hash, nearest first.
+     *
+     * @param radius the largest distance to report, from 0 (identical hashes) to 64
+     */
+    public synchronized List<Match> search(long hash, int radius) {
+        List<Match> matches = new ArrayList<Match>();
+        if (mRoot == null) {
+            return matches;
+        }
+        List<Node> pending = new ArrayList<Node>();
+        pending.add(mRoot);
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            int distance = PerceptualHash.distance(hash, node.mHash);
+            if (distance <= radius) {
+                for (String id : node.mIds) {
+                    matches.add(new Match(id, node.mHash, distance));
+                }
+            }
+            for (int i = 0; i < node.mChildCount; i++) {
+                if (Math.abs(node.mDistances[i] - distance) <= radius) {
+                    pending.add(node.mChildren[i]);
+                }
+            }
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    /**
+     * Finds the images that look like the one a metacard was made from, including that image itself.
+     *
+     * @return the matches, or an empty list if the metacard has no perceptual hash
+     */
+    public List<Match> search(Metacard metacard, int radius) {
+        Attribute hash = metacard.getAttribute(JpegMetacardType.PERCEPTUAL_HASH);
+        if ((hash == null) || !(hash.getValue() instanceof String)) {
+            return new ArrayList<Match>();
+        }
+        return search(PerceptualHash.fromHex((String) hash.getValue()), radius);
+    }
+
+    /**
+     * The number of images in the index.
+     */
+    public synchronized int size() {
+        return mHashes.size();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * The number of additions and removals since the index was last loaded or saved.
+     */
+    public synchronized int getUnsavedChanges() {
+        return mUnsavedChanges;
+    }
+
+    private Node findNode(long hash) {
+        Node node = mRoot;
+        while (node.mHash != hash) {
+            node = node.getChild(PerceptualHash.distance(hash, node.mHash));
+        }
+        return node;
+    }
+
+    /**
+     * Replaces the contents of the index with those of its file, if the file exists. A file that cannot be
+     * read is logged and the index left empty, to be rebuilt as images are added.
+     */
+    public synchronized void load() {
+        mRoot = null;
+        mHashes.clear();
+        mUnsavedChanges = 0;
+        if ((mFile == null) || !mFile.exists()) {
+            return;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a perceptual hash index");
+            }
+            int nodeCount = input.readInt();
+            if (nodeCount > 0) {
+                readTree(input, nodeCount);
+            }
+            LOGGER.debug("Loaded {} perceptual hashes from {}", mHashes.size(), mFile);
+        } catch (IOException e) {
+            LOGGER.warn("Could not load perceptual hash index " + mFile + ", starting empty", e);
+            mRoot = null;
+            mHashes.clear();
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Writes the index to its file. It is written to a temporary file first, so a failed save leaves the
+     * previous file alone, and is tried again after the next save interval.
+     */
+    public void save() {
+        if (mFile == null) {
+            return;
+        }
+        synchronized (mFileLock) {
+            byte[] snapshot;
+            try {
+                synchronized (this) {
+                    mSaveQueued = false;
+                    snapshot = snapshot();
+                    mUnsavedChanges = 0;
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not save perceptual hash index " + mFile, e);
+                return;
+            }
+            write(snapshot);
+        }
+    }
+
+    /**
+     * Stops saving in the background, waiting for a save that is under way, and saves the index.
+     */
+    public void close() {
+        ExecutorService saver;
+        synchronized (this) {
+            mClosed = true;
+            saver = mSaver;
+            mSaver = null;
+        }
+        if (saver != null) {
+            saver.shutdown();
+            try {
+                if (!saver.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOGGER.warn("Timed out waiting for the perceptual hash index to be saved");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        save();
+    }
+
+    /**
+     * Waits for a background save that has been queued to finish.
+     */
+    void awaitBackgroundSave() throws InterruptedException, ExecutionException {
+        ExecutorService saver;
+        synchronized (this) {
+            saver = mSaver;
+        }
+        if (saver != null) {
+            saver.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        }
+    }
+
+    private byte[] snapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(countNodes());
+        if (mRoot != null) {
+            writeTree(output);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private void write(byte[] snapshot) {
+        File temporary = new File(mFile.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temporary);
+            output.write(snapshot);
+            output.close();
+            output = null;
+            if (!temporary.renameTo(mFile) && !(mFile.delete() && temporary.renameTo(mFile))) {
+                throw new IOException("Could not replace " + mFile);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not save perceptual hash index " + mFile, e);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    private int countNodes() {
+        int count = 0;
+        if (mRoot == null) {
+            return count;
+        }
+        List<Node> pending = new ArrayList<Node>();
+        pending.add(mRoot);
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            count++;
+            for (int i = 0; i < node.mChildCount; i++) {
+                pending.add(node.mChildren[i]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the nodes depth first, each as its hash, its ids and its number of children, with each child
+     * preceded by its distance from the parent. The tree can be deep, so this does not recurse.
+     */
+    private void writeTree(DataOutputStream output) throws IOException {
+        List<Node> nodes = new ArrayList<Node>();
+        List<Integer> next = new ArrayList<Integer>();
+        writeNode(output, mRoot);
+        nodes.add(mRoot);
+        next.add(0);
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            Node node = nodes.get(top);
+            int child = next.get(top);
+            if (child == node.mChildCount) {
+                nodes.remove(top);
+                next.remove(top);
+                continue;
+            }
+            next.set(top, child + 1);
+            output.writeByte(node.mDistances[child]);
+            writeNode(output, node.mChildren[child]);
+            nodes.add(node.mChildren[child]);
+            next.add(0);
+        }
+    }
+
+    private static void writeNode(DataOutputStream output, Node node) throws IOException {
+        output.writeLong(node.mHash);
+        output.writeInt(node.mIds.length);
+        for (String id : node.mIds) {
+            output.writeUTF(id);
+        }
+        output.writeByte(node.mChildCount);
+    }
+
+    private void readTree(DataInputStream input, int nodeCount) throws IOException {
+        List<Node> nodes = new ArrayList<Node>();
+        List<Integer> remaining = new ArrayList<Integer>();
+        int read = 1;
+        mRoot = readNode(input, nodes, remaining);
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            int children = remaining.get(top);
+            if (children == 0) {
+                nodes.remove(top);
+                remaining.remove(top);
+                continue;
+            }
+            remaining.set(top, children - 1);
+            Node parent = nodes.get(top);
+            int distance = input.readUnsignedByte();
+            if (++read > nodeCount) {
+                throw new IOException("Perceptual hash index has more nodes than its header says");
+            }
+            parent.addChild(distance, readNode(input, nodes, remaining));
+        }
+    }
+
+    private Node readNode(DataInputStream input, List<Node> nodes, List<Integer> remaining) throws IOException {
+        Node node = new Node(input.readLong());
+        int idCount = input.readInt();
+        if (idCount < 0) {
+            throw new IOException("Perceptual hash index has a negative id count");
+        }
+        if (idCount > 0) {
+            node.mIds = new String[idCount];
+            for (int i = 0; i < idCount; i++) {
+                node.mIds[i] = input.readUTF();
+                mHashes.put(node.mIds[i], node.mHash);
+            }
+        }
+        nodes.add(node);
+        remaining.add(input.readUnsignedByte());
+        return node;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.debug("Could not close perceptual hash index file", e);
+        }
+    }
+}
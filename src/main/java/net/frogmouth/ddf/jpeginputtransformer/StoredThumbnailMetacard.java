@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.Serializable;
+
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.AttributeImpl;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardImpl;
+import ddf.catalog.data.MetacardType;
+
+/**
+ * Metacard that keeps its thumbnail in a {@link ThumbnailStore}.
+ *
+ * Setting the thumbnail stores it and keeps only a {@link ThumbnailStore.Ref}. Reading it copies it back
+ * out of the store, so it should be read once and the copy kept if it is needed more than once. If the
+ * store is full of other thumbnails, or the thumbnail has been evicted, the metacard has no thumbnail.
+ * Without a store, the thumbnail is kept on the metacard as usual. Serializing the metacard writes a plain
+ * {@link MetacardImpl} with the thumbnail bytes.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class StoredThumbnailMetacard extends MetacardImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ThumbnailStore mStore;
+    private transient ThumbnailStore.Ref mThumbnailRef;
+
+    StoredThumbnailMetacard(MetacardType type, ThumbnailStore store) {
+        super(type);
+        mStore = store;
+    }
+
+    @Override
+    public Attribute getAttribute(String name) {
+        ThumbnailStore.Ref ref = getThumbnailRef();
+        if ((ref != null) && Metacard.THUMBNAIL.equals(name)) {
+            byte[] thumbnail = ref.getBytes();
+            return (thumbnail != null) ? new AttributeImpl(Metacard.THUMBNAIL, thumbnail) : null;
+        }
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public byte[] getThumbnail() {
+        ThumbnailStore.Ref ref = getThumbnailRef();
+        if (ref != null) {
+            return ref.getBytes();
+        }
+        return super.getThumbnail();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        if ((mStore != null) && Metacard.THUMBNAIL.equals(attribute.getName())) {
+            storeThumbnail(attribute.getValue());
+            return;
+        }
+        super.setAttribute(attribute);
+    }
+
+    @Override
+    public void setAttribute(String name, Serializable value) {
+        if ((mStore != null) && Metacard.THUMBNAIL.equals(name)) {
+            storeThumbnail(value);
+            return;
+        }
+        super.setAttribute(name, value);
+    }
+
+    /**
+     * The reference to the stored thumbnail, or null if the metacard has none in the store.
+     */
+    public synchronized ThumbnailStore.Ref getThumbnailRef() {
+        return mThumbnailRef;
+    }
+
+    private synchronized void storeThumbnail(Serializable value) {
+        if (mThumbnailRef != null) {
+            mThumbnailRef.release();
+            mThumbnailRef = null;
+        }
+        if (value instanceof byte[]) {
+            mThumbnailRef = mStore.put((byte[]) value);
+        }
+        // Without a reference (no thumbnail, one too large for the store, or a hash collision) the value stays on the heap
+        super.setAttribute(new AttributeImpl(Metacard.THUMBNAIL, (mThumbnailRef != null) ? null : value));
+    }
+
+    private Object writeReplace() {
+        return MetacardCache.copy(this, getId());
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.drew.imaging.jpeg.JpegSegmentData;
+
+/**
+ * Generates a thumbnail by decoding the main image at reduced resolution.
+ *
+ * Used when the image has no embedded EXIF thumbnail. The decoder is fed the tables and frame header
+ * from the already-read header segments, followed by the unread remainder of the stream, so the header
+ * is not read twice. Source subsampling is applied while decoding, so the only full-size buffers are the
+ * decoder's per-scanline ones and heap use is bounded by the size of the subsampled image rather than
+ * the size of the photo. A stream is cached in memory as the decoder reads it, never in a temporary
+ * file, and a buffer (such as a mapped file) is read where it is.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class SubsampledThumbnail {
+
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_JPG = 0xC8;
+    private static final int MARKER_DAC = 0xCC;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP14 = 0xEE;
+
+    private SubsampledThumbnail() {
+    }
+
+    /**
+     * Decodes the image and encodes a JPEG thumbnail of it.
+     *
+     * @param segments the header segments read by {@link JpegHeaderReader}
+     * @param remainder the rest of the JPEG stream, starting at the first SOS marker
+     * @param maxEdge the maximum width or height of the thumbnail, in pixels
+     * @param quality JPEG compression quality of the thumbnail, from 0 to 1
+     * @param deadlineNanos {@link System#nanoTime()} at which decoding is abandoned, or zero for no deadline
+     * @return the encoded thumbnail, or null if the image could not be decoded in time
+     */
+    static byte[] generate(JpegSegmentData segments, InputStream remainder, int maxEdge, float quality, long deadlineNanos) throws IOException {
+        InputStream jpeg = new SequenceInputStream(new ByteArrayInputStream(decoderPrefix(segments)), remainder);
+        return generate(new MemoryCacheImageInputStream(jpeg), maxEdge, quality, deadlineNanos);
+    }
+
+    /**
+     * Decodes the image and encodes a JPEG thumbnail of it, reading the scan data straight from a buffer.
+     *
+     * @param remainder the rest of the JPEG, starting at the first SOS marker. It is not modified.
+     */
+    static byte[] generate(JpegSegmentData segments, ByteBuffer remainder, int maxEdge, float quality, long deadlineNanos) throws IOException {
+        return generate(new ByteBufferImageInputStream(decoderPrefix(segments), remainder), maxEdge, quality, deadlineNanos);
+    }
+
+    private static byte[] generate(ImageInputStream jpeg, int maxEdge, float quality, long deadlineNanos) throws IOException {
+        BufferedImage subsampled = decodeSubsampled(jpeg, maxEdge, deadlineNanos);
+        if (subsampled == null) {
+            return null;
+        }
+        return encode(scale(subsampled, maxEdge), quality);
+    }
+
+    /**
+     * Whether the decoder needs a segment to decode the image, so it has to be kept in the header.
+     */
+    static boolean isDecoderSegment(int marker) {
+        switch (marker) {
+            case MARKER_APP0:
+            case MARKER_APP14:
+            case MARKER_DQT:
+            case MARKER_DHT:
+            case MARKER_DRI:
+                return true;
+            default:
+                return (marker >= 0xC0) && (marker <= 0xCF) && (marker != MARKER_JPG) && (marker != MARKER_DAC);
+        }
+    }
+
+    /**
+     * Rebuilds the start of the JPEG with only the segments the decoder needs: the JFIF and Adobe
+     * application segments (which determine the colour space), the tables, and the frame header.
+     */
+    private static byte[] decoderPrefix(JpegSegmentData segments) {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        prefix.write(JpegHeaderReader.MARKER_PREFIX);
+        prefix.write(JpegHeaderReader.MARKER_SOI);
+        writeSegments(prefix, segments, MARKER_APP0);
+        writeSegments(prefix, segments, MARKER_APP14);
+        writeSegments(prefix, segments, MARKER_DQT);
+        writeSegments(prefix, segments, MARKER_DHT);
+        writeSegments(prefix, segments, MARKER_DRI);
+        for (int marker = 0xC0; marker <= 0xCF; marker++) {
+            if ((marker != MARKER_DHT) && (marker != MARKER_JPG) && (marker != MARKER_DAC)) {
+                writeSegments(prefix, segments, marker);
+            }
+        }
+        return prefix.toByteArray();
+    }
+
+    private static void writeSegments(ByteArrayOutputStream out, JpegSegmentData segments, int marker) {
+        if (!segments.containsSegment((byte) marker)) {
+            return;
+        }
+        for (byte[] payload : segments.getSegments((byte) marker)) {
+            out.write(JpegHeaderReader.MARKER_PREFIX);
+            out.write(marker);
+            out.write(((payload.length + 2) >> 8) & 0xFF);
+            out.write((payload.length + 2) & 0xFF);
+            out.write(payload, 0, payload.length);
+        }
+    }
+
+    private static BufferedImage decodeSubsampled(ImageInputStream input, int maxEdge, long deadlineNanos) throws IOException {
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longestEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                // Subsample to somewhere between maxEdge and twice that, then scale smoothly from there
+                int subsampling = Math.max(1, longestEdge / maxEdge);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                DeadlineListener deadline = null;
+                if (deadlineNanos != 0) {
+                    deadline = new DeadlineListener(deadlineNanos);
+                    reader.addIIOReadProgressListener(deadline);
+                }
+                BufferedImage image = reader.read(0, param);
+                if ((deadline != null) && deadline.mAborted) {
+                    return null;
+                }
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Image input stream over the rebuilt start of the JPEG followed by the scan data in a buffer, with no
+     * cache, since every byte can be read again from where it is.
+     */
+    private static final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+        private final byte[] mPrefix;
+        private final ByteBuffer mRemainder;
+        private final int mStart;
+
+        ByteBufferImageInputStream(byte[] prefix, ByteBuffer remainder) {
+            mPrefix = prefix;
+            mRemainder = remainder;
+            mStart = remainder.position();
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= length()) {
+                return -1;
+            }
+            int b = (streamPos < mPrefix.length) ? (mPrefix[(int) streamPos] & 0xFF) : (mRemainder.get(mStart + (int) (streamPos - mPrefix.length)) & 0xFF);
+            streamPos++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (length == 0) {
+                return 0;
+            }
+            long available = length() - streamPos;
+            if (available <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(length, available);
+            int copied = 0;
+            if (streamPos < mPrefix.length) {
+                copied = Math.min(count, mPrefix.length - (int) streamPos);
+                System.arraycopy(mPrefix, (int) streamPos, buffer, offset, copied);
+            }
+            if (copied < count) {
+                ByteBuffer scan = mRemainder.duplicate();
+                scan.position(mStart + (int) (streamPos + copied - mPrefix.length));
+                scan.get(buffer, offset + copied, count - copied);
+            }
+            streamPos += count;
+            return count;
+        }
+
+        @Override
+        public long length() {
+            return mPrefix.length + (mRemainder.limit() - mStart);
+        }
+    }
+
+    /**
+     * Aborts the read once the deadline has passed. The decoder reports progress as it goes, so this
+     * bounds the time spent on an image with a huge frame or a scan that never ends.
+     */
+    private static class DeadlineListener implements IIOReadProgressListener {
+        private final long mDeadlineNanos;
+        private boolean mAborted = false;
+
+        DeadlineListener(long deadlineNanos) {
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (!mAborted && (System.nanoTime() - mDeadlineNanos > 0)) {
+                mAborted = true;
+                source.abort();
+            }
+        }
+
+        public void readAborted(ImageReader source) {
+            mAborted = true;
+        }
+
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        public void imageComplete(ImageReader source) {
+        }
+
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        public void thumbnailComplete(ImageReader source) {
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image, int maxEdge) {
+        int longestEdge = Math.max(image.getWidth(), image.getHeight());
+        if (longestEdge <= maxEdge) {
+            return image;
+        }
+        int width = Math.max(1, (image.getWidth() * maxEdge) / longestEdge);
+        int height = Math.max(1, (image.getHeight() * maxEdge) / longestEdge);
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageOutputStream output = ImageIO.createImageOutputStream(bytes);
+        try {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,506 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Off-heap store of thumbnails, keyed by their content.
+ *
+ * Thumbnails are held in direct buffers outside the Java heap, so a large batch of metacards does not
+ * grow the heap or the garbage collector's work with it. A thumbnail that is stored again (a duplicate
+ * image) is shared rather than copied. Each metacard holds a {@link Ref}, which copies the thumbnail back
+ * onto the heap only when it is asked for.
+ *
+ * The store is split into fixed-size blocks, carved out of 4MB direct buffers as they are needed, and a
+ * thumbnail takes as many blocks as it needs, wherever they are free. Entries are reference counted: a
+ * reference is released explicitly with {@link Ref#release()}, or when the garbage collector finds its
+ * {@link Ref} unreachable. When the store is full, the least recently used unreferenced thumbnail is
+ * evicted, and only if there are none the least recently used referenced one, whose references then
+ * resolve to null. References are tracked by thumbnail content, so if an evicted thumbnail is stored
+ * again, the references that outlived it count towards the new entry, which they resolve to.
+ *
+ * {@link #setCapacity(long)} resizes the store in place. Shrinking it moves thumbnails out of the blocks
+ * beyond the new capacity, evicting them where there is no room, and frees the surplus buffers.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class ThumbnailStore {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    private final int mBlockSize;
+    private final int mBlocksPerSlab;
+    private int mBlockCount;
+    private ByteBuffer[] mSlabs;
+    private int mUnallocatedBlock = 0;
+    private int[] mFreeBlocks = new int[16];
+    private int mFreeCount = 0;
+
+    private final Map<JpegHeaderReader.HeaderHash, Entry> mEntries = new LinkedHashMap<JpegHeaderReader.HeaderHash, Entry>(16, 0.75f, true);
+    private final Map<Entry, Entry> mUnreferenced = new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+    private final ReferenceQueue<Ref> mCollected = new ReferenceQueue<Ref>();
+    private final Map<JpegHeaderReader.HeaderHash, Set<Tracker>> mTrackers = new HashMap<JpegHeaderReader.HeaderHash, Set<Tracker>>();
+    private int mTrackerCount = 0;
+
+    private long mStores = 0;
+    private long mDuplicates = 0;
+    private long mEvictions = 0;
+    private long mStoredBytes = 0;
+
+    /**
+     * Creates a store with the default block size.
+     *
+     * @param capacity the number of bytes of off-heap memory the store may use
+     */
+    public ThumbnailStore(long capacity) {
+        this(capacity, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param capacity the number of bytes of off-heap memory the store may use
+     * @param blockSize the unit of allocation, a power of two of at most 4MB
+     */
+    public ThumbnailStore(long capacity, int blockSize) {
+        if ((blockSize <= 0) || (blockSize > SLAB_SIZE) || (Integer.bitCount(blockSize) != 1)) {
+            throw new IllegalArgumentException("blockSize must be a power of two of at most " + SLAB_SIZE);
+        }
+        if (capacity < blockSize) {
+            throw new IllegalArgumentException("capacity must be at least one block");
+        }
+        mBlockSize = blockSize;
+        mBlocksPerSlab = SLAB_SIZE / blockSize;
+        mBlockCount = blockCount(capacity);
+        mSlabs = new ByteBuffer[slabCount(mBlockCount)];
+    }
+
+    private int blockCount(long capacity) {
+        return (int) Math.min(capacity / mBlockSize, Integer.MAX_VALUE - mBlocksPerSlab);
+    }
+
+    private int slabCount(int blockCount) {
+        return (blockCount + mBlocksPerSlab - 1) / mBlocksPerSlab;
+    }
+
+    /**
+     * The size of the buffer holding a slab, which is smaller than a full slab only for the last one.
+     */
+    private int slabBytes(int slab, int blockCount) {
+        return Math.min(mBlocksPerSlab, blockCount - (slab * mBlocksPerSlab)) * mBlockSize;
+    }
+
+    /**
+     * A metacard's hold on a stored thumbnail.
+     */
+    public static final class Ref {
+        private final ThumbnailStore mStore;
+        private final JpegHeaderReader.HeaderHash mKey;
+        private final int mLength;
+        private Tracker mTracker;
+
+        Ref(ThumbnailStore store, JpegHeaderReader.HeaderHash key, int length) {
+            mStore = store;
+            mKey = key;
+            mLength = length;
+        }
+
+        /**
+         * A copy of the thumbnail, or null if it has been evicted.
+         */
+        public byte[] getBytes() {
+            return mStore.get(this);
+        }
+
+        /**
+         * The size of the thumbnail, whether or not it is still stored.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Gives up the hold on the thumbnail. Releasing twice has no further effect.
+         */
+        public void release() {
+            mStore.release(mTracker);
+        }
+    }
+
+    /**
+     * Notices when a {@link Ref} has been collected without being released.
+     */
+    private static final class Tracker extends PhantomReference<Ref> {
+        final JpegHeaderReader.HeaderHash mKey;
+        /**
+         * The entry counting this reference: the current one for the key, or an evicted one if the
+         * thumbnail has not been stored again since.
+         */
+        Entry mEntry;
+        boolean mReleased = false;
+
+        Tracker(Ref ref, Entry entry, ReferenceQueue<Ref> queue) {
+            super(ref, queue);
+            mKey = entry.mKey;
+            mEntry = entry;
+        }
+    }
+
+    private static final class Entry {
+        final JpegHeaderReader.HeaderHash mKey;
+        final int mLength;
+        int[] mBlocks;
+        int mReferences = 0;
+
+        Entry(JpegHeaderReader.HeaderHash key, int length, int[] blocks) {
+            mKey = key;
+            mLength = length;
+            mBlocks = blocks;
+        }
+    }
+
+    /**
+     * Stores a thumbnail, or takes another reference to an identical one.
+     *
+     * @return the reference, or null if the thumbnail is larger than the whole store
+     */
+    public Ref put(byte[] thumbnail) {
+        JpegHeaderReader.HeaderHash key = JpegHeaderReader.hashOf(thumbnail);
+        int blocksNeeded = (thumbnail.length + mBlockSize - 1) / mBlockSize;
+        synchronized (this) {
+            if (blocksNeeded > mBlockCount) {
+                return null;
+            }
+            releaseCollected();
+            Entry entry = mEntries.get(key);
+            if ((entry != null) && !contentEquals(entry, thumbnail)) {
+                // Different thumbnails with the same hash, the newcomer is not stored
+                return null;
+            }
+            if (entry != null) {
+                mDuplicates++;
+            } else {
+                while (mFreeCount + (mBlockCount - mUnallocatedBlock) < blocksNeeded) {
+                    evict();
+                }
+                int[] blocks = new int[blocksNeeded];
+                for (int i = 0; i < blocksNeeded; i++) {
+                    blocks[i] = allocateBlock();
+                }
+                entry = new Entry(key, thumbnail.length, blocks);
+                write(entry, thumbnail);
+                mEntries.put(key, entry);
+                mStores++;
+                mStoredBytes += thumbnail.length;
+                // References to an evicted copy of the thumbnail read this one, so they count for it
+                Set<Tracker> survivors = mTrackers.get(key);
+                if (survivors != null) {
+                    for (Tracker tracker : survivors) {
+                        tracker.mEntry = entry;
+                    }
+                    entry.mReferences = survivors.size();
+                }
+            }
+            Ref ref = new Ref(this, key, thumbnail.length);
+            ref.mTracker = new Tracker(ref, entry, mCollected);
+            Set<Tracker> trackers = mTrackers.get(key);
+            if (trackers == null) {
+                trackers = new HashSet<Tracker>();
+                mTrackers.put(key, trackers);
+            }
+            trackers.add(ref.mTracker);
+            mTrackerCount++;
+            if (entry.mReferences++ == 0) {
+                mUnreferenced.remove(entry);
+            }
+            return ref;
+        }
+    }
+
+    synchronized byte[] get(Ref ref) {
+        // Looked up by content rather than through the tracker, so an evicted thumbnail that has since been stored again is found
+        Entry entry = mEntries.get(ref.mKey);
+        if (entry == null) {
+            return null;
+        }
+        // Counts as a use for the order in which unreferenced thumbnails are evicted
+        mUnreferenced.get(entry);
+        byte[] thumbnail = new byte[entry.mLength];
+        int offset = 0;
+        for (int block : entry.mBlocks) {
+            int count = Math.min(mBlockSize, entry.mLength - offset);
+            ByteBuffer slab = slab(block);
+            slab.position(blockOffset(block));
+            slab.get(thumbnail, offset, count);
+            offset += count;
+        }
+        return thumbnail;
+    }
+
+    private synchronized void release(Tracker tracker) {
+        if (tracker.mReleased) {
+            return;
+        }
+        tracker.mReleased = true;
+        tracker.clear();
+        Set<Tracker> trackers = mTrackers.get(tracker.mKey);
+        trackers.remove(tracker);
+        if (trackers.isEmpty()) {
+            mTrackers.remove(tracker.mKey);
+        }
+        mTrackerCount--;
+        Entry entry = tracker.mEntry;
+        // An evicted entry has nothing left to count
+        if ((entry.mBlocks != null) && (--entry.mReferences == 0)) {
+            mUnreferenced.put(entry, entry);
+        }
+    }
+
+    private void releaseCollected() {
+        Tracker tracker;
+        while ((tracker = (Tracker) mCollected.poll()) != null) {
+            release(tracker);
+        }
+    }
+
+    private void evict() {
+        if (!mUnreferenced.isEmpty()) {
+            evict(mUnreferenced.keySet().iterator().next());
+        } else {
+            evict(mEntries.values().iterator().next());
+        }
+    }
+
+    private void evict(Entry victim) {
+        mEntries.remove(victim.mKey);
+        mUnreferenced.remove(victim);
+        for (int block : victim.mBlocks) {
+            freeBlock(block);
+        }
+        victim.mBlocks = null;
+        mStoredBytes -= victim.mLength;
+        mEvictions++;
+    }
+
+    /**
+     * Changes the number of bytes of off-heap memory the store may use. Thumbnails stored in blocks beyond
+     * a smaller capacity are moved to free blocks within it, or evicted if there are not enough, and the
+     * buffers beyond it are freed.
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < mBlockSize) {
+            throw new IllegalArgumentException("capacity must be at least one block");
+        }
+        releaseCollected();
+        int blockCount = blockCount(capacity);
+        if (blockCount == mBlockCount) {
+            return;
+        }
+        int oldBlockCount = mBlockCount;
+        if (blockCount < oldBlockCount) {
+            // Nothing is allocated beyond the new end from here on, but the old slabs are still readable
+            mBlockCount = blockCount;
+            mUnallocatedBlock = Math.min(mUnallocatedBlock, blockCount);
+            int kept = 0;
+            for (int i = 0; i < mFreeCount; i++) {
+                if (mFreeBlocks[i] < blockCount) {
+                    mFreeBlocks[kept++] = mFreeBlocks[i];
+                }
+            }
+            mFreeCount = kept;
+            List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+            for (Entry entry : entries) {
+                relocate(entry);
+            }
+        }
+        ByteBuffer[] slabs = new ByteBuffer[slabCount(blockCount)];
+        System.arraycopy(mSlabs, 0, slabs, 0, Math.min(slabs.length, mSlabs.length));
+        // The last slab is only as large as the blocks it holds, so it is resized to the new end
+        int last = Math.min(slabs.length, mSlabs.length) - 1;
+        if ((last >= 0) && (slabs[last] != null) && (slabs[last].capacity() != slabBytes(last, blockCount))) {
+            ByteBuffer resized = ByteBuffer.allocateDirect(slabBytes(last, blockCount));
+            ByteBuffer contents = slabs[last].duplicate();
+            contents.clear();
+            contents.limit(Math.min(contents.capacity(), resized.capacity()));
+            resized.put(contents);
+            slabs[last] = resized;
+        }
+        mSlabs = slabs;
+        mBlockCount = blockCount;
+    }
+
+    /**
+     * Moves the blocks of an entry that lie beyond the end of the store into free blocks, or evicts the
+     * entry if there are not enough.
+     */
+    private void relocate(Entry entry) {
+        int outside = 0;
+        for (int block : entry.mBlocks) {
+            if (block >= mBlockCount) {
+                outside++;
+            }
+        }
+        if (outside == 0) {
+            return;
+        }
+        if (mFreeCount + (mBlockCount - mUnallocatedBlock) < outside) {
+            evict(entry);
+            return;
+        }
+        for (int i = 0; i < entry.mBlocks.length; i++) {
+            int block = entry.mBlocks[i];
+            if (block < mBlockCount) {
+                continue;
+            }
+            int moved = allocateBlock();
+            ByteBuffer source = slab(block).duplicate();
+            source.position(blockOffset(block));
+            source.limit(blockOffset(block) + mBlockSize);
+            ByteBuffer target = slab(moved);
+            target.position(blockOffset(moved));
+            target.put(source);
+            entry.mBlocks[i] = moved;
+        }
+    }
+
+    private int allocateBlock() {
+        if (mFreeCount > 0) {
+            return mFreeBlocks[--mFreeCount];
+        }
+        int block = mUnallocatedBlock++;
+        int slab = block / mBlocksPerSlab;
+        if (mSlabs[slab] == null) {
+            mSlabs[slab] = ByteBuffer.allocateDirect(slabBytes(slab, mBlockCount));
+        }
+        return block;
+    }
+
+    private void freeBlock(int block) {
+        if (block >= mBlockCount) {
+            // Beyond the end of a store that is being shrunk
+            return;
+        }
+        if (mFreeCount == mFreeBlocks.length) {
+            int[] freeBlocks = new int[mFreeCount * 2];
+            System.arraycopy(mFreeBlocks, 0, freeBlocks, 0, mFreeCount);
+            mFreeBlocks = freeBlocks;
+        }
+        mFreeBlocks[mFreeCount++] = block;
+    }
+
+    private void write(Entry entry, byte[] thumbnail) {
+        int offset = 0;
+        for (int block : entry.mBlocks) {
+            int count = Math.min(mBlockSize, thumbnail.length - offset);
+            ByteBuffer slab = slab(block);
+            slab.position(blockOffset(block));
+            slab.put(thumbnail, offset, count);
+            offset += count;
+        }
+    }
+
+    private boolean contentEquals(Entry entry, byte[] thumbnail) {
+        if (entry.mLength != thumbnail.length) {
+            return false;
+        }
+        int offset = 0;
+        for (int block : entry.mBlocks) {
+            int count = Math.min(mBlockSize, thumbnail.length - offset);
+            ByteBuffer slab = slab(block);
+            int position = blockOffset(block);
+            for (int i = 0; i < count; i++) {
+                if (slab.get(position + i) != thumbnail[offset + i]) {
+                    return false;
+                }
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    private ByteBuffer slab(int block) {
+        return mSlabs[block / mBlocksPerSlab];
+    }
+
+    private int blockOffset(int block) {
+        return (block % mBlocksPerSlab) * mBlockSize;
+    }
+
+    /**
+     * The number of distinct thumbnails in the store.
+     */
+    public synchronized int size() {
+        releaseCollected();
+        return mEntries.size();
+    }
+
+    /**
+     * The number of references held on stored thumbnails.
+     */
+    public synchronized int getReferenceCount() {
+        releaseCollected();
+        return mTrackerCount;
+    }
+
+    /**
+     * The number of bytes of thumbnail data held, not counting the unused ends of blocks.
+     */
+    public synchronized long getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    /**
+     * The number of bytes of off-heap memory allocated so far.
+     */
+    public synchronized long getAllocatedBytes() {
+        long allocated = 0;
+        for (ByteBuffer slab : mSlabs) {
+            if (slab != null) {
+                allocated += slab.capacity();
+            }
+        }
+        return allocated;
+    }
+
+    public synchronized long getCapacity() {
+        return (long) mBlockCount * mBlockSize;
+    }
+
+    public synchronized long getStores() {
+        return mStores;
+    }
+
+    /**
+     * The number of thumbnails that were already in the store when they were stored.
+     */
+    public synchronized long getDuplicates() {
+        return mDuplicates;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+}
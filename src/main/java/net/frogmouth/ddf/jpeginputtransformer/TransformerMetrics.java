@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-stage latency histograms and throughput counters for {@link JpegInputTransformer}.
+ *
+ * Recording is lock-free, so one instance can be shared by every thread calling the transformer. The
+ * blueprint container calls {@link #register()} and {@link #unregister()} to publish the metrics as an
+ * MXBean for the lifetime of the bundle.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public class TransformerMetrics implements TransformerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "net.frogmouth.ddf:type=JpegInputTransformer,name=metrics";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransformerMetrics.class);
+
+    private static final int BUCKETS = 40;
+
+    /**
+     * The timed stages of a transform.
+     */
+    public enum Stage {
+        READ("read"),
+        IFD0("ifd0"),
+        SUB_IFD("subifd"),
+        THUMBNAIL("thumbnail"),
+        GPS("gps"),
+        IPTC("iptc"),
+        XMP("xmp"),
+        TOTAL("total");
+
+        private final String mName;
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private static class StageStatistics {
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while ((nanos > max) && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+
+        long percentileMicros(double fraction) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(count * fraction);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += mBuckets.get(i);
+                if (cumulative >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+        }
+
+        long[] histogram() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+            }
+            return counts;
+        }
+    }
+
+    private final StageStatistics[] mStages = new StageStatistics[Stage.values().length];
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mThumbnailCount = new AtomicLong();
+    private final AtomicLong mThumbnailBytes = new AtomicLong();
+    private final AtomicLong mMetadataErrors = new AtomicLong();
+    private final AtomicLong mLimitHits = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> mExceptions = new ConcurrentHashMap<String, AtomicLong>();
+
+    private MBeanServer mMBeanServer;
+
+    public TransformerMetrics() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new StageStatistics();
+        }
+    }
+
+    /**
+     * Records the time taken by a stage that started at {@code startNanos}.
+     *
+     * @return the current {@link System#nanoTime()}, so consecutive stages can be timed with one call each
+     */
+    public long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        mStages[stage.ordinal()].record(now - startNanos);
+        return now;
+    }
+
+    public void addBytesRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+    }
+
+    public void addThumbnail(byte[] thumbnail) {
+        if (thumbnail != null) {
+            mThumbnailCount.incrementAndGet();
+            mThumbnailBytes.addAndGet(thumbnail.length);
+        }
+    }
+
+    public void addMetadataError() {
+        mMetadataErrors.incrementAndGet();
+    }
+
+    public void addLimitHit() {
+        mLimitHits.incrementAndGet();
+    }
+
+    public void addException(Throwable exception) {
+        String type = exception.getClass().getName();
+        AtomicLong count = mExceptions.get(type);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = mExceptions.putIfAbsent(type, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            mMBeanServer = server;
+        } catch (JMException e) {
+            LOGGER.warn("Could not register JPEG transformer metrics MBean", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the MBean server they were published on.
+     */
+    public void unregister() {
+        if (mMBeanServer == null) {
+            return;
+        }
+        try {
+            mMBeanServer.unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOGGER.warn("Could not unregister JPEG transformer metrics MBean", e);
+        }
+        mMBeanServer = null;
+    }
+
+    @Override
+    public long getTransformCount() {
+        return mStages[Stage.TOTAL.ordinal()].mCount.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    @Override
+    public long getThumbnailCount() {
+        return mThumbnailCount.get();
+    }
+
+    @Override
+    public long getThumbnailBytes() {
+        return mThumbnailBytes.get();
+    }
+
+    @Override
+    public long getMetadataErrorCount() {
+        return mMetadataErrors.get();
+    }
+
+    @Override
+    public long getLimitHitCount() {
+        return mLimitHits.get();
+    }
+
+    @Override
+    public Map<String, Long> getExceptionCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : mExceptions.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Stage stage : Stage.values()) {
+            counts.put(stage.getName(), mStages[stage.ordinal()].mCount.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMicros() {
+        Map<String, Double> means = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            StageStatistics statistics = mStages[stage.ordinal()];
+            long count = statistics.mCount.get();
+            means.put(stage.getName(), (count == 0) ? 0.0 : (statistics.mTotalNanos.get() / 1000.0) / count);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Long> getStageP50Micros() {
+        return percentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getStageP99Micros() {
+        return percentiles(0.99);
+    }
+
+    @Override
+    public Map<String, Long> getStageMaxMicros() {
+        Map<String, Long> maxima = new LinkedHashMap<String, Long>();
+        for (Stage stage : Stage.values()) {
+            maxima.put(stage.getName(), mStages[stage.ordinal()].mMaxNanos.get() / 1000);
+        }
+        return maxima;
+    }
+
+    @Override
+    public Map<String, long[]> getStageHistograms() {
+        Map<String, long[]> histograms = new LinkedHashMap<String, long[]>();
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage.getName(), mStages[stage.ordinal()].histogram());
+        }
+        return histograms;
+    }
+
+    @Override
+    public void reset() {
+        for (StageStatistics statistics : mStages) {
+            statistics.reset();
+        }
+        mBytesRead.set(0);
+        mThumbnailCount.set(0);
+        mThumbnailBytes.set(0);
+        mMetadataErrors.set(0);
+        mLimitHits.set(0);
+        mExceptions.clear();
+    }
+
+    private Map<String, Long> percentiles(double fraction) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Stage stage : Stage.values()) {
+            values.put(stage.getName(), mStages[stage.ordinal()].percentileMicros(fraction));
+        }
+        return values;
+    }
+}
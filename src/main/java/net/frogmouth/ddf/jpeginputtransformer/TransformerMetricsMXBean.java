@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.Map;
+
+/**
+ * Management interface for the {@link JpegInputTransformer} metrics.
+ *
+ * Stage maps are keyed by stage name (read, ifd0, subifd, thumbnail, gps, iptc, xmp and total).
+ * Latencies are in microseconds, and percentiles are the upper bound of the histogram bucket they
+ * fall into.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public interface TransformerMetricsMXBean {
+
+    long getTransformCount();
+
+    long getBytesRead();
+
+    long getThumbnailCount();
+
+    long getThumbnailBytes();
+
+    long getMetadataErrorCount();
+
+    /**
+     * The number of transforms that exceeded a parse limit and returned partial metadata.
+     */
+    long getLimitHitCount();
+
+    Map<String, Long> getExceptionCounts();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanMicros();
+
+    Map<String, Long> getStageP50Micros();
+
+    Map<String, Long> getStageP99Micros();
+
+    Map<String, Long> getStageMaxMicros();
+
+    /**
+     * Raw histogram counts per stage. Bucket 0 counts latencies under one microsecond, and bucket i
+     * counts latencies of at least 2^(i-1) and under 2^i microseconds.
+     */
+    Map<String, long[]> getStageHistograms();
+
+    void reset();
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.frogmouth.ddf.jpeginputtransformer.JpegInputTransformer.XMPMapping;
+
+/**
+ * Immutable lookup table from a metadata tag type to the XMP mappings for that tag.
+ *
+ * Built once from a list of mappings, then queried once per tag in a directory. Uses open addressing
+ * over primitive int keys, so a lookup neither boxes the tag type nor walks the list of mappings. Tag
+ * types are 16-bit, so a negative key marks an empty slot.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class XMPMappingTable {
+
+    static final int MAX_TAG_TYPE = 0xFFFF;
+
+    private static final int EMPTY = -1;
+    private static final XMPMapping[] NONE = new XMPMapping[0];
+
+    private final int[] mKeys;
+    private final XMPMapping[][] mValues;
+    private final int mMask;
+    private final int mSize;
+
+    XMPMappingTable(List<XMPMapping> mappings) {
+        int capacity = 8;
+        while (capacity < (2 * mappings.size())) {
+            capacity <<= 1;
+        }
+        mKeys = new int[capacity];
+        mValues = new XMPMapping[capacity][];
+        mMask = capacity - 1;
+        Arrays.fill(mKeys, EMPTY);
+        for (XMPMapping mapping : mappings) {
+            add(mapping);
+        }
+        mSize = mappings.size();
+    }
+
+    /**
+     * The mappings for a tag type, in the order they were added. Never null.
+     */
+    XMPMapping[] lookup(int tagType) {
+        int slot = hash(tagType) & mMask;
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == tagType) {
+                return mValues[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Number of mappings in the table.
+     */
+    int size() {
+        return mSize;
+    }
+
+    private void add(XMPMapping mapping) {
+        int tagType = mapping.exifTag();
+        if ((tagType < 0) || (tagType > MAX_TAG_TYPE)) {
+            throw new IllegalArgumentException("Tag type 0x" + Integer.toHexString(tagType) + " is outside 0 to 0x" + Integer.toHexString(MAX_TAG_TYPE));
+        }
+        int slot = hash(tagType) & mMask;
+        while ((mKeys[slot] != EMPTY) && (mKeys[slot] != tagType)) {
+            slot = (slot + 1) & mMask;
+        }
+        if (mKeys[slot] == EMPTY) {
+            mKeys[slot] = tagType;
+            mValues[slot] = new XMPMapping[] {mapping};
+        } else {
+            XMPMapping[] existing = mValues[slot];
+            XMPMapping[] grown = new XMPMapping[existing.length + 1];
+            System.arraycopy(existing, 0, grown, 0, existing.length);
+            grown[existing.length] = mapping;
+            mValues[slot] = grown;
+        }
+    }
+
+    private static int hash(int tagType) {
+        // Tag types cluster in a few ranges, so spread the bits before masking
+        int h = tagType * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import com.adobe.xmp.XMPException;
+
+/**
+ * Destination for the simple XMP properties produced by the XMP mappings.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+interface XMPPropertySink {
+
+    /**
+     * Sets a simple property, replacing any earlier value for the same property.
+     *
+     * @param namespace the namespace URI of the property
+     * @param name the local name of the property
+     * @param value the value, converted to text the same way as {@link com.adobe.xmp.XMPMeta#setProperty}
+     */
+    void setProperty(String namespace, String name, Object value) throws XMPException;
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import com.adobe.xmp.XMPConst;
+import com.adobe.xmp.XMPError;
+import com.adobe.xmp.XMPException;
+import com.adobe.xmp.XMPMetaFactory;
+import com.adobe.xmp.XMPSchemaRegistry;
+
+/**
+ * Writes a flat set of simple XMP properties directly as an XMP packet, without building an
+ * {@link com.adobe.xmp.XMPMeta} tree.
+ *
+ * The output is a single rdf:Description holding every property, which is semantically the same RDF as
+ * the per-schema descriptions written by {@link XMPMetaFactory#serializeToString}. Values are converted
+ * and escaped the way XMPCore does it, and a namespace must be registered with the XMPCore schema
+ * registry, whose prefix is used for it. Packet padding is omitted, since the packet is never edited in
+ * place.
+ *
+ * Instances are not thread-safe, and are meant to be used for one packet.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+final class XMPStreamWriter implements XMPPropertySink {
+
+    private static final String PACKET_HEADER = "<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n";
+    private static final String PACKET_TRAILER = "<?xpacket end=\"w\"?>";
+
+    private static final XMPSchemaRegistry REGISTRY = XMPMetaFactory.getSchemaRegistry();
+
+    private final StringBuilder mBuffer = new StringBuilder(2048);
+    private String[] mNamespaces = new String[32];
+    private String[] mNames = new String[32];
+    private String[] mValues = new String[32];
+    private int mCount = 0;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws XMPException if the namespace is not registered, as XMPCore throws
+     */
+    @Override
+    public void setProperty(String namespace, String name, Object value) throws XMPException {
+        if (!XMPConst.NS_XML.equals(namespace) && (REGISTRY.getNamespacePrefix(namespace) == null)) {
+            throw new XMPException("Unregistered schema namespace URI", XMPError.BADSCHEMA);
+        }
+        String text = toXmpValue(value);
+        for (int i = 0; i < mCount; i++) {
+            if (mNames[i].equals(name) && mNamespaces[i].equals(namespace)) {
+                mValues[i] = text;
+                return;
+            }
+        }
+        if (mCount == mNames.length) {
+            grow();
+        }
+        mNamespaces[mCount] = namespace;
+        mNames[mCount] = name;
+        mValues[mCount] = text;
+        mCount++;
+    }
+
+    /**
+     * Serializes the properties set since the last reset as a complete XMP packet.
+     */
+    String serialize() {
+        StringBuilder out = mBuffer;
+        out.setLength(0);
+        out.append(PACKET_HEADER);
+        out.append("<x:xmpmeta xmlns:x=\"").append(XMPConst.NS_X).append("\">\n");
+        out.append(" <rdf:RDF xmlns:rdf=\"").append(XMPConst.NS_RDF).append("\">\n");
+        out.append("  <rdf:Description rdf:about=\"\"");
+        for (int i = 0; i < mCount; i++) {
+            if (isFirstUse(i) && !XMPConst.NS_XML.equals(mNamespaces[i])) {
+                out.append("\n    xmlns:").append(prefix(i)).append("=\"").append(mNamespaces[i]).append('"');
+            }
+        }
+        out.append(">\n");
+        for (int i = 0; i < mCount; i++) {
+            String qualifiedName = prefix(i) + ":" + mNames[i];
+            out.append("   <").append(qualifiedName).append('>');
+            appendEscaped(out, mValues[i]);
+            out.append("</").append(qualifiedName).append(">\n");
+        }
+        out.append("  </rdf:Description>\n");
+        out.append(" </rdf:RDF>\n");
+        out.append("</x:xmpmeta>\n");
+        out.append(PACKET_TRAILER);
+        return out.toString();
+    }
+
+    private boolean isFirstUse(int index) {
+        for (int i = 0; i < index; i++) {
+            if (mNamespaces[i].equals(mNamespaces[index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String prefix(int index) {
+        if (XMPConst.NS_XML.equals(mNamespaces[index])) {
+            return "xml";
+        }
+        String prefix = REGISTRY.getNamespacePrefix(mNamespaces[index]);
+        // The registry returns prefixes with the trailing colon
+        if (prefix.endsWith(":")) {
+            return prefix.substring(0, prefix.length() - 1);
+        }
+        return prefix;
+    }
+
+    private void grow() {
+        int capacity = mNames.length * 2;
+        String[] namespaces = new String[capacity];
+        String[] names = new String[capacity];
+        String[] values = new String[capacity];
+        System.arraycopy(mNamespaces, 0, namespaces, 0, mCount);
+        System.arraycopy(mNames, 0, names, 0, mCount);
+        System.arraycopy(mValues, 0, values, 0, mCount);
+        mNamespaces = namespaces;
+        mNames = names;
+        mValues = values;
+    }
+
+    /**
+     * Converts a value to its XMP text form, matching XMPCore's conversion of simple values.
+     */
+    static String toXmpValue(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String text;
+        if (value instanceof Boolean) {
+            text = ((Boolean) value).booleanValue() ? "True" : "False";
+        } else {
+            text = value.toString();
+        }
+        // XMPCore replaces control characters (other than tab, LF and CR) with spaces
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (((c < 0x20) || (c == 0x7F)) && (c != '\t') && (c != '\n') && (c != '\r')) {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = ' ';
+            }
+        }
+        return (chars == null) ? text : new String(chars);
+    }
+
+    /**
+     * Escapes element content as XMPCore does, including tab, LF and CR, which a parser would otherwise
+     * normalise away.
+     */
+    private static void appendEscaped(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                out.append("&amp;");
+                break;
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '\t':
+                out.append("&#x9;");
+                break;
+            case '\n':
+                out.append("&#xA;");
+                break;
+            case '\r':
+                out.append("&#xD;");
+                break;
+            default:
+                out.append(c);
+            }
+        }
+    }
+}
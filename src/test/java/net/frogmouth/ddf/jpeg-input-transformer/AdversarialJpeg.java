@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.jpeginputtransformer;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Generates malformed and hostile JPEG headers, for testing the parsing limits.
+ *
+ * None of the files has any image data: each is an SOI marker, the hostile part, and (where the hostile
+ * part ends) an SOS marker with a truncated scan.
+ *
+ * @author Brad Hards
+ * @author bradh@frogmouth.net
+ * @since DDF 2.2.0
+ */
+public final class AdversarialJpeg {
+
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP13 = 0xED;
+    private static final int MARKER_APP15 = 0xEF;
+
+    private AdversarialJpeg() {
+    }
+
+    /**
+     * A header made of many large padding segments.
+     */
+    public static byte[] manySegments(int count, int size) {
+        ByteArrayOutputStream out = start();
+        byte[] payload = new byte[size];
+        for (int i = 0; i < count; i++) {
+            segment(out, MARKER_APP15, payload);
+        }
+        return finish(out);
+    }
+
+    /**
+     * An EXIF segment whose IFD0 has the given number of entries, as many as fit in a segment.
+     */
+    public static byte[] largeExifDirectory(int entries) {
+        ByteArrayOutputStream tiff = tiffHeader();
+        writeShort(tiff, entries);
+        for (int i = 0; i < entries; i++) {
+            // SHORT tags with the value in the entry, numbered clear of the IFD pointer tags
+            writeShort(tiff, 0xB000 + i);
+            writeShort(tiff, 3);
+            writeInt(tiff, 1);
+            writeInt(tiff, i & 0xFFFF);
+        }
+        writeInt(tiff, 0);
+        return exif(tiff.toByteArray());
+    }
+
+    /**
+     * An EXIF segment whose IFD0 points back at itself, both as its Exif IFD and as the next IFD.
+     */
+    public static byte[] exifIfdLoop() {
+        ByteArrayOutputStream tiff = tiffHeader();
+        writeShort(tiff, 2);
+        writeShort(tiff, 0x8769);
+        writeShort(tiff, 4);
+        writeInt(tiff, 1);
+        writeInt(tiff, 8);
+        writeShort(tiff, 0x8825);
+        writeShort(tiff, 4);
+        writeInt(tiff, 1);
+        writeInt(tiff, 8);
+        writeInt(tiff, 8);
+        return exif(tiff.toByteArray());
+    }
+
+    /**
+     * An APP13 Photoshop segment with the given number of IPTC keyword records.
+     */
+    public static byte[] manyIptcRecords(int records) {
+        ByteArrayOutputStream iptc = new ByteArrayOutputStream();
+        for (int i = 0; i < records; i++) {
+            iptc.write(0x1C);
+            iptc.write(2);
+            iptc.write(25);
+            writeShort(iptc, 1);
+            iptc.write('k');
+        }
+        byte[] block = iptc.toByteArray();
+        ByteArrayOutputStream photoshop = new ByteArrayOutputStream();
+        write(photoshop, "Photoshop 3.0".getBytes());
+        photoshop.write(0);
+        write(photoshop, "8BIM".getBytes());
+        writeShort(photoshop, 0x0404);
+        writeShort(photoshop, 0);
+        writeInt(photoshop, block.length);
+        write(photoshop, block);
+        if ((block.length & 1) != 0) {
+            photoshop.write(0);
+        }
+        ByteArrayOutputStream out = start();
+        segment(out, MARKER_APP13, photoshop.toByteArray());
+        return finish(out);
+    }
+
+    /**
+     * A marker prefix followed by nothing but fill bytes.
+     */
+    public static byte[] endlessFill(int fillBytes) {
+        byte[] jpeg = new byte[fillBytes + 3];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        for (int i = 2; i < jpeg.length; i++) {
+            jpeg[i] = (byte) 0xFF;
+        }
+        return jpeg;
+    }
+
+    private static byte[] exif(byte[] tiff) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        write(payload, new byte[] {'E', 'x', 'i', 'f', 0, 0});
+        write(payload, tiff);
+        ByteArrayOutputStream out = start();
+        segment(out, MARKER_APP1, payload.toByteArray());
+        return finish(out);
+    }
+
+    private static ByteArrayOutputStream tiffHeader() {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        write(tiff, new byte[] {'M', 'M', 0, 42});
+        writeInt(tiff, 8);
+        return tiff;
+    }
+
+    private static ByteArrayOutputStream start() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        return out;
+    }
+
+    private static byte[] finish(ByteArrayOutputStream out) {
+        out.write(0xFF);
+        out.write(0xDA);
+        writeShort(out, 8);
+        return out.toByteArray();
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        if (payload.length > 0xFFFF - 2) {
+            throw new IllegalArgumentException("segment payload is too large: " + payload.length);
+        }
+        out.write(0xFF);
+        out.write(marker);
+        writeShort(out, payload.length + 2);
+        write(out, payload);
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, (value >> 16) & 0xFFFF);
+        writeShort(out, value & 0xFFFF);
+    }
+}
@@ -16,6 +16,10 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import static org.mockito.Mockito.*;
 
@@ -23,29 +27,59 @@ import static org.mockito.Mockito.*;
 
 import org.apache.commons.io.FileUtils;
 
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.TimeZone;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
 
+import com.adobe.xmp.XMPConst;
+import com.adobe.xmp.XMPException;
+import com.adobe.xmp.XMPIterator;
+import com.adobe.xmp.XMPMeta;
+import com.adobe.xmp.XMPMetaFactory;
+import com.adobe.xmp.properties.XMPPropertyInfo;
+
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 
+import ddf.catalog.data.AttributeDescriptor;
+import ddf.catalog.data.BasicTypes;
 import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardImpl;
 import ddf.catalog.data.QualifiedMetacardType;
 import ddf.catalog.data.MetacardTypeRegistry;
 import ddf.catalog.transform.CatalogTransformerException;
+import ddf.catalog.transform.InputTransformer;
 import ddf.catalog.source.UnsupportedQueryException;
 import ddf.catalog.source.SourceUnavailableException;
 import ddf.catalog.federation.FederationException;
@@ -133,4 +167,1026 @@ public class TestJpegInputTransformer {
 		assertNotNull(thumbnail);
 		assertThat(thumbnail.length, is(11490));
 	}
+
+	@Test()
+	public void testHeaderReaderStopsAtScan() throws IOException, com.drew.imaging.jpeg.JpegProcessingException {
+		byte[] jpeg = new byte[] {
+			(byte) 0xFF, (byte) 0xD8,
+			(byte) 0xFF, (byte) 0xE0, 0x00, 0x04, 0x4A, 0x46,
+			(byte) 0xFF, (byte) 0xFF, (byte) 0xFE, 0x00, 0x03, 0x41,
+			(byte) 0xFF, (byte) 0xDA, 0x00, 0x02, 0x11, 0x22, 0x33,
+			(byte) 0xFF, (byte) 0xD9
+		};
+		InputStream input = new ByteArrayInputStream(jpeg);
+		JpegHeaderReader reader = new JpegHeaderReader(input);
+
+		assertThat(reader.reachedScan(), is(true));
+		assertThat(reader.getBytesRead(), is(16L));
+		assertArrayEquals(new byte[] {0x4A, 0x46}, reader.getSegmentData().getSegment((byte) 0xE0));
+		assertArrayEquals(new byte[] {0x41}, reader.getSegmentData().getSegment((byte) 0xFE));
+
+		// The remainder must start at the SOS marker, and nothing past it may have been consumed
+		assertThat(input.available(), is(jpeg.length - 16));
+		InputStream remainder = reader.getRemainder();
+		for (int i = 14; i < jpeg.length; i++) {
+			assertThat(remainder.read(), is(jpeg[i] & 0xFF));
+		}
+		assertThat(remainder.read(), is(-1));
+	}
+
+	@Test(expected = CatalogTransformerException.class)
+	public void testTruncatedHeader() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		byte[] jpeg = new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0x01, 0x00, 0x45};
+		createTransformer().transform(new ByteArrayInputStream(jpeg));
+	}
+
+	@Test()
+	public void testBatch() throws IOException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		JpegBatchTransformer batch = new JpegBatchTransformer(createTransformer(), 2, 2);
+		List<File> files = new ArrayList<File>();
+		files.add(new File(TEST_DATA_PATH + "Apple iPhone 4.jpg"));
+		files.add(new File(TEST_DATA_PATH + "does not exist.jpg"));
+		files.add(new File(TEST_DATA_PATH + "Apple iPhone 4.jpg"));
+
+		Iterator<JpegBatchTransformer.Result> results = batch.transformFiles(files, true);
+		for (int i = 0; i < files.size(); i++) {
+			JpegBatchTransformer.Result result = results.next();
+			assertThat(result.getIndex(), is((long) i));
+			assertThat(result.isSuccess(), is(i != 1));
+			assertThat(result.getMetacard() != null, is(i != 1));
+		}
+		assertThat(results.hasNext(), is(false));
+		batch.shutdown();
+	}
+
+	@Test()
+	public void testUnorderedBatch() throws IOException {
+		final AtomicInteger outstanding = new AtomicInteger();
+		final AtomicInteger mostOutstanding = new AtomicInteger();
+		InputTransformer transformer = new InputTransformer() {
+			public Metacard transform(InputStream input) throws IOException, CatalogTransformerException {
+				int started = outstanding.incrementAndGet();
+				synchronized (mostOutstanding) {
+					mostOutstanding.set(Math.max(mostOutstanding.get(), started));
+				}
+				int value = input.read();
+				if (value == 3) {
+					throw new CatalogTransformerException("bad item");
+				}
+				MetacardImpl metacard = new MetacardImpl();
+				metacard.setTitle("item " + value);
+				return metacard;
+			}
+
+			public Metacard transform(InputStream input, String id) throws IOException, CatalogTransformerException {
+				return transform(input);
+			}
+		};
+		JpegBatchTransformer batch = new JpegBatchTransformer(transformer, 4, 3);
+		List<InputStream> inputs = new ArrayList<InputStream>();
+		for (int i = 0; i < 50; i++) {
+			inputs.add(new ByteArrayInputStream(new byte[] {(byte) i}));
+		}
+
+		boolean[] seen = new boolean[inputs.size()];
+		Iterator<JpegBatchTransformer.Result> results = batch.transform(inputs, false);
+		while (results.hasNext()) {
+			JpegBatchTransformer.Result result = results.next();
+			outstanding.decrementAndGet();
+			int index = (int) result.getIndex();
+			assertThat(seen[index], is(false));
+			seen[index] = true;
+			assertThat(result.isSuccess(), is(index != 3));
+			if (index != 3) {
+				assertEquals("item " + index, result.getMetacard().getTitle());
+			}
+		}
+		for (boolean item : seen) {
+			assertThat(item, is(true));
+		}
+		// Items are only pulled from the input as results are taken
+		assertThat(mostOutstanding.get() <= 3, is(true));
+		batch.shutdown();
+	}
+
+	@Test()
+	public void testBatchCloseFailure() throws IOException {
+		final AtomicInteger daemonWorkers = new AtomicInteger();
+		InputTransformer transformer = new InputTransformer() {
+			public Metacard transform(InputStream input) throws IOException, CatalogTransformerException {
+				if (Thread.currentThread().isDaemon()) {
+					daemonWorkers.incrementAndGet();
+				}
+				MetacardImpl metacard = new MetacardImpl();
+				metacard.setTitle("item " + input.read());
+				return metacard;
+			}
+
+			public Metacard transform(InputStream input, String id) throws IOException, CatalogTransformerException {
+				return transform(input);
+			}
+		};
+		InputStream unclosable = new ByteArrayInputStream(new byte[] {7}) {
+			@Override
+			public void close() throws IOException {
+				throw new IOException("close failed");
+			}
+		};
+		JpegBatchTransformer batch = new JpegBatchTransformer(transformer, 1, 1);
+		Iterator<JpegBatchTransformer.Result> results = batch.transform(Arrays.asList(unclosable), true);
+		JpegBatchTransformer.Result result = results.next();
+
+		// The metacard is kept, and the worker does not keep the JVM running
+		assertThat(result.isSuccess(), is(true));
+		assertEquals("item 7", result.getMetacard().getTitle());
+		assertThat(daemonWorkers.get(), is(1));
+		batch.shutdown();
+	}
+
+	@Test()
+	public void testMappingTableLookup() {
+		List<JpegInputTransformer.XMPMapping> mappings = new ArrayList<JpegInputTransformer.XMPMapping>();
+		for (int tag = 0; tag < 100; tag++) {
+			mappings.add(JpegInputTransformer.XMPMapping.create("string", 0x9000 + (tag * 16), "http://example.com/", "Tag" + tag));
+		}
+		mappings.add(JpegInputTransformer.XMPMapping.create("int", 0x9000, "http://example.com/", "Duplicate"));
+		XMPMappingTable table = new XMPMappingTable(mappings);
+
+		assertThat(table.size(), is(101));
+		assertThat(table.lookup(0x9000).length, is(2));
+		assertThat(table.lookup(0x9000 + (99 * 16)).length, is(1));
+		assertThat(table.lookup(0x9000 + (99 * 16))[0].exifTag(), is(0x9000 + (99 * 16)));
+		assertThat(table.lookup(0x9001).length, is(0));
+		assertThat(table.lookup(0).length, is(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMappingTableRejectsNegativeTag() {
+		List<JpegInputTransformer.XMPMapping> mappings = new ArrayList<JpegInputTransformer.XMPMapping>();
+		mappings.add(JpegInputTransformer.XMPMapping.create("string", -1, "http://example.com/", "Tag"));
+		new XMPMappingTable(mappings);
+	}
+
+	@Test()
+	public void testMappingFile() throws Exception {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		File mappings = File.createTempFile("xmp-mappings", ".properties");
+		try {
+			String publisher = "ifd0.0x010F=string,http://purl.org/dc/elements/1.1/,publisher\n";
+			FileUtils.writeStringToFile(mappings, publisher);
+			transformer.setMappingFile(mappings.getPath());
+			assertThat(transformer.transform(FileUtils.openInputStream(file)).getMetadata().contains("dc:publisher"), is(true));
+
+			// A file with a bad line is rejected as a whole, keeping the previous mappings
+			String[] badLines = {"ifd0.-1=string,http://purl.org/dc/elements/1.1/,source\n", "ifd0.0x10000=string,http://purl.org/dc/elements/1.1/,source\n",
+					"ifd0.0x0110=string,http://example.com/unregistered/,model\n", "ifd0.0x0110=string,http://purl.org/dc/elements/1.1/\n"};
+			for (String badLine : badLines) {
+				FileUtils.writeStringToFile(mappings, badLine);
+				mappings.setLastModified(mappings.lastModified() + 1000);
+				transformer.setMappingFile(mappings.getPath());
+				String metadata = transformer.transform(FileUtils.openInputStream(file)).getMetadata();
+				assertThat(badLine, metadata.contains("dc:publisher"), is(true));
+			}
+		} finally {
+			mappings.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownMappingType() {
+		JpegInputTransformer.XMPMapping.create("float", 0x9000, "http://example.com/", "Tag");
+	}
+
+	@Test()
+	public void testStreamingXmpWriter() throws XMPException {
+		XMPStreamWriter writer = new XMPStreamWriter();
+		writer.setProperty(XMPConst.NS_TIFF, "Make", "Smith & <Sons>");
+		writer.setProperty(XMPConst.NS_TIFF, "Model", "first");
+		writer.setProperty(XMPConst.NS_TIFF, "Model", "second");
+		writer.setProperty(XMPConst.NS_EXIF, "PixelXDimension", 2592);
+		writer.setProperty(XMPConst.NS_XML, "errors", "no");
+		String xmp = writer.serialize();
+
+		assertThat(xmp.contains("<tiff:Make>Smith &amp; &lt;Sons&gt;</tiff:Make>"), is(true));
+		assertThat(xmp.contains("<tiff:Model>second</tiff:Model>"), is(true));
+		assertThat(xmp.contains("first"), is(false));
+		assertThat(xmp.contains("<exif:PixelXDimension>2592</exif:PixelXDimension>"), is(true));
+		assertThat(xmp.contains("<xml:errors>no</xml:errors>"), is(true));
+		assertThat(xmp.contains("xmlns:xml="), is(false));
+
+		// Like XMPCore, the writer only takes registered namespaces
+		try {
+			writer.setProperty("http://example.com/unregistered/", "Tag", "value");
+			fail("expected XMPException");
+		} catch (XMPException e) {
+			// expected
+		}
+	}
+
+	@Test()
+	public void testStreamingXmpMatchesXmpCore() throws Exception {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		Metacard xmpCore = transformer.transform(FileUtils.openInputStream(file));
+		transformer.setStreamingXmpWriter(true);
+		Metacard streamed = transformer.transform(FileUtils.openInputStream(file));
+
+		assertEquals(propertiesOf(xmpCore.getMetadata()), propertiesOf(streamed.getMetadata()));
+		assertThat(propertiesOf(streamed.getMetadata()).containsKey(XMPConst.NS_TIFF + " tiff:Make"), is(true));
+
+		// Whitespace and markup in values survive the round trip
+		Metadata metadata = new Metadata();
+		ExifIFD0Directory ifd0 = metadata.getOrCreateDirectory(ExifIFD0Directory.class);
+		ifd0.setString(ExifIFD0Directory.TAG_COPYRIGHT, "Line one\r\nLine two\tend");
+		ifd0.setString(ExifIFD0Directory.TAG_IMAGE_DESCRIPTION, "<b>Fish & chips</b>\n");
+		ifd0.setString(ExifIFD0Directory.TAG_MAKE, "Make\r");
+		MetacardImpl fromXmpCore = new MetacardImpl();
+		JpegInputTransformer xmpCoreTransformer = createTransformer();
+		xmpCoreTransformer.convertImageMetadataToMetacardMetadata(metadata, fromXmpCore);
+		MetacardImpl fromStream = new MetacardImpl();
+		transformer.convertImageMetadataToMetacardMetadata(metadata, fromStream);
+		Map<String, String> expected = propertiesOf(fromXmpCore.getMetadata());
+		assertEquals(expected, propertiesOf(fromStream.getMetadata()));
+		assertEquals("Line one\r\nLine two\tend", XMPMetaFactory.parseFromString(fromStream.getMetadata()).getPropertyString(XMPConst.NS_DC, "rights"));
+	}
+
+	/**
+	 * Every property of a packet, keyed by namespace and path.
+	 */
+	private static Map<String, String> propertiesOf(String packet) throws XMPException {
+		Map<String, String> properties = new TreeMap<String, String>();
+		for (XMPIterator it = XMPMetaFactory.parseFromString(packet).iterator(); it.hasNext();) {
+			XMPPropertyInfo property = (XMPPropertyInfo) it.next();
+			if (property.getPath() != null) {
+				properties.put(property.getNamespace() + " " + property.getPath(), property.getValue());
+			}
+		}
+		return properties;
+	}
+
+	@Test()
+	public void testCacheHit() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		transformer.setCacheSize(10);
+		Metacard first = transformer.transform(FileUtils.openInputStream(file), "first");
+		Metacard second = transformer.transform(FileUtils.openInputStream(file), "second");
+
+		assertThat(transformer.getCache().getMisses(), is(1L));
+		assertThat(transformer.getCache().getHits(), is(1L));
+		assertEquals("first", first.getId());
+		assertEquals("second", second.getId());
+		assertNotSame(first, second);
+		assertEquals(first.getCreatedDate(), second.getCreatedDate());
+		assertEquals(first.getLocation(), second.getLocation());
+		assertEquals(first.getMetadata(), second.getMetadata());
+
+		// Configuration updates that leave the size alone keep the cache
+		MetacardCache cache = transformer.getCache();
+		transformer.setCacheSize(10);
+		assertSame(cache, transformer.getCache());
+		assertThat(cache.size(), is(1));
+		transformer.setCacheSize(20);
+		assertNotSame(cache, transformer.getCache());
+	}
+
+	@Test()
+	public void testCacheClearedOnConfigurationChange() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		transformer.setCacheSize(10);
+		MetacardCache cache = transformer.getCache();
+
+		transformer.transform(FileUtils.openInputStream(file));
+		transformer.setThumbnailMaxEdge(256);
+		transformer.setStreamingXmpWriter(false);
+		transformer.setMappingFile("");
+		assertThat(cache.size(), is(1));
+		transformer.setThumbnailMaxEdge(128);
+		assertThat(cache.size(), is(0));
+
+		transformer.transform(FileUtils.openInputStream(file));
+		transformer.setStreamingXmpWriter(true);
+		assertThat(cache.size(), is(0));
+
+		File mappings = File.createTempFile("xmp-mappings", ".properties");
+		try {
+			FileUtils.writeStringToFile(mappings, "subifd.0x8827=int,http://ns.adobe.com/exif/1.0/,ISOSpeedRatings\n");
+			transformer.transform(FileUtils.openInputStream(file));
+			transformer.setMappingFile(mappings.getPath());
+			assertThat(cache.size(), is(0));
+
+			transformer.transform(FileUtils.openInputStream(file));
+			transformer.setMappingFile(mappings.getPath());
+			assertThat(cache.size(), is(1));
+			transformer.setMappingFile("");
+			assertThat(cache.size(), is(0));
+		} finally {
+			mappings.delete();
+		}
+	}
+
+	@Test()
+	public void testCacheSkipsGeneratedThumbnails() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		// Same size and encoder, so the headers are identical, but the scan data differs
+		BufferedImage rising = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		BufferedImage falling = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 64; x++) {
+				rising.setRGB(x, y, (x * 4) * 0x010101);
+				falling.setRGB(x, y, (255 - (x * 4)) * 0x010101);
+			}
+		}
+		ByteArrayOutputStream risingJpeg = new ByteArrayOutputStream();
+		ImageIO.write(rising, "jpeg", risingJpeg);
+		ByteArrayOutputStream fallingJpeg = new ByteArrayOutputStream();
+		ImageIO.write(falling, "jpeg", fallingJpeg);
+
+		JpegInputTransformer transformer = createTransformer();
+		transformer.setCacheSize(10);
+		Metacard first = transformer.transform(new ByteArrayInputStream(risingJpeg.toByteArray()));
+		Metacard second = transformer.transform(new ByteArrayInputStream(fallingJpeg.toByteArray()));
+		assertThat(transformer.getCache().getHits(), is(0L));
+		assertThat(transformer.getCache().size(), is(0));
+		assertThat(Arrays.equals(first.getThumbnail(), second.getThumbnail()), is(false));
+		assertThat(first.getAttribute(JpegMetacardType.PERCEPTUAL_HASH).getValue().equals(second.getAttribute(JpegMetacardType.PERCEPTUAL_HASH).getValue()), is(false));
+	}
+
+	@Test()
+	public void testCacheEviction() {
+		MetacardCache cache = new MetacardCache(2);
+		for (int i = 0; i < 3; i++) {
+			MetacardImpl metacard = new MetacardImpl(BasicTypes.BASIC_METACARD);
+			metacard.setTitle("image " + i);
+			cache.put(new JpegHeaderReader.HeaderHash(i, i, 100), metacard);
+		}
+
+		assertThat(cache.size(), is(2));
+		assertThat(cache.getEvictions(), is(1L));
+		assertNull(cache.get(new JpegHeaderReader.HeaderHash(0, 0, 100), "id"));
+		Metacard hit = cache.get(new JpegHeaderReader.HeaderHash(2, 2, 100), "id");
+		assertEquals("image 2", hit.getTitle());
+		assertEquals("id", hit.getId());
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.getMisses(), is(1L));
+	}
+
+	@Test()
+	public void testGeneratedThumbnail() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		// A plain JPEG with no EXIF data, so there is no embedded thumbnail
+		BufferedImage image = new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpeg", jpeg);
+
+		JpegInputTransformer transformer = createTransformer();
+		transformer.setThumbnailMaxEdge(100);
+		Metacard metacard = transformer.transform(new ByteArrayInputStream(jpeg.toByteArray()));
+		assertNotNull(metacard.getThumbnail());
+		BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(metacard.getThumbnail()));
+		assertThat(thumbnail.getWidth(), is(100));
+		assertThat(thumbnail.getHeight(), is(50));
+
+		transformer.setThumbnailMaxEdge(0);
+		metacard = transformer.transform(new ByteArrayInputStream(jpeg.toByteArray()));
+		assertNull(metacard.getThumbnail());
+	}
+
+	@Test()
+	public void testMetrics() throws IOException, UnsupportedQueryException, SourceUnavailableException, FederationException, CatalogTransformerException {
+		JpegInputTransformer transformer = createTransformer();
+		TransformerMetrics metrics = transformer.getMetrics();
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		transformer.transform(FileUtils.openInputStream(file));
+		try {
+			transformer.transform(new ByteArrayInputStream("{key=".getBytes()));
+		} catch (CatalogTransformerException e) {
+			// expected
+		}
+
+		assertThat(metrics.getTransformCount(), is(1L));
+		assertThat(metrics.getStageCounts().get("xmp"), is(1L));
+		assertThat(metrics.getBytesRead() > 0, is(true));
+		assertThat(metrics.getExceptionCounts().get("com.drew.imaging.jpeg.JpegProcessingException"), is(1L));
+		assertThat(metrics.getStageP99Micros().get("total") >= metrics.getStageP50Micros().get("total"), is(true));
+
+		metrics.reset();
+		assertThat(metrics.getTransformCount(), is(0L));
+		assertThat(metrics.getExceptionCounts().isEmpty(), is(true));
+	}
+
+	@Test()
+	public void testMappedFile() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		Metacard streamed = transformer.transform(FileUtils.openInputStream(file), "id");
+		Metacard mapped = transformer.transformFile(file, "id");
+
+		assertEquals(streamed.getCreatedDate(), mapped.getCreatedDate());
+		assertEquals(streamed.getModifiedDate(), mapped.getModifiedDate());
+		assertEquals(streamed.getLocation(), mapped.getLocation());
+		assertEquals(streamed.getMetadata(), mapped.getMetadata());
+		assertArrayEquals(streamed.getThumbnail(), mapped.getThumbnail());
+	}
+
+	@Test()
+	public void testHeaderReaderFromBuffer() throws IOException, com.drew.imaging.jpeg.JpegProcessingException {
+		byte[] jpeg = new byte[] {
+			(byte) 0xFF, (byte) 0xD8,
+			(byte) 0xFF, (byte) 0xE0, 0x00, 0x04, 0x4A, 0x46,
+			(byte) 0xFF, (byte) 0xDA, 0x00, 0x02, 0x11,
+			(byte) 0xFF, (byte) 0xD9
+		};
+		ByteBuffer buffer = ByteBuffer.wrap(jpeg);
+		JpegHeaderReader reader = new JpegHeaderReader(buffer, false);
+
+		assertThat(reader.reachedScan(), is(true));
+		assertThat(buffer.position(), is(10));
+		assertArrayEquals(new byte[] {0x4A, 0x46}, reader.getSegmentData().getSegment((byte) 0xE0));
+		InputStream remainder = reader.getRemainder();
+		for (int i = 8; i < jpeg.length; i++) {
+			assertThat(remainder.read(), is(jpeg[i] & 0xFF));
+		}
+		assertThat(remainder.read(), is(-1));
+	}
+
+	@Test()
+	public void testLazyAttributes() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		Metacard eager = transformer.transform(FileUtils.openInputStream(file));
+		transformer.setLazyAttributes(true);
+		Metacard metacard = transformer.transform(FileUtils.openInputStream(file));
+
+		assertThat(metacard instanceof LazyJpegMetacard, is(true));
+		LazyJpegMetacard lazy = (LazyJpegMetacard) metacard;
+		assertThat(lazy.isMetadataBuilt(), is(false));
+		assertEquals(eager.getCreatedDate(), lazy.getCreatedDate());
+		assertEquals(eager.getLocation(), lazy.getLocation());
+		assertThat(lazy.isMetadataBuilt(), is(false));
+
+		assertEquals(eager.getMetadata(), lazy.getMetadata());
+		assertThat(lazy.isMetadataBuilt(), is(true));
+		assertArrayEquals(eager.getThumbnail(), lazy.getThumbnail());
+		assertThat(lazy.isThumbnailBuilt(), is(true));
+	}
+
+	@Test()
+	public void testLazyAttributesConcurrentAccess() throws Exception {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		final Metacard eager = transformer.transform(FileUtils.openInputStream(file), "id");
+		transformer.setLazyAttributes(true);
+		final Metacard lazy = transformer.transform(FileUtils.openInputStream(file), "id");
+		// The XMP is built as the transformer was configured for the transform, not as it is now
+		transformer.setProfile("full -xmp.ifd0 -xmp.subifd");
+		transformer.setStreamingXmpWriter(true);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread reader = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 200; j++) {
+							assertEquals("id", lazy.getId());
+							assertEquals(eager.getLocation(), lazy.getLocation());
+							assertEquals(eager.getCreatedDate(), lazy.getCreatedDate());
+							assertEquals(eager.getAttribute(JpegMetacardType.GEOHASH).getValue(), lazy.getAttribute(JpegMetacardType.GEOHASH).getValue());
+						}
+						assertEquals(eager.getMetadata(), lazy.getMetadata());
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			reader.start();
+			readers.add(reader);
+		}
+		start.countDown();
+		assertEquals(eager.getMetadata(), lazy.getMetadata());
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertThat(failures.toString(), is("[]"));
+		assertThat(((LazyJpegMetacard) lazy).isMetadataBuilt(), is(true));
+	}
+
+	@Test()
+	public void testExtractionProfiles() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		Metacard full = transformer.transform(FileUtils.openInputStream(file));
+
+		transformer.setProfile("minimal");
+		Metacard minimal = transformer.transform(FileUtils.openInputStream(file));
+		assertEquals(full.getCreatedDate(), minimal.getCreatedDate());
+		assertEquals(full.getModifiedDate(), minimal.getModifiedDate());
+		assertEquals(full.getLocation(), minimal.getLocation());
+		assertNull(minimal.getThumbnail());
+		assertNull(minimal.getMetadata());
+
+		transformer.setProfile("minimal +thumbnail");
+		Metacard withThumbnail = transformer.transformFile(file);
+		assertArrayEquals(full.getThumbnail(), withThumbnail.getThumbnail());
+
+		transformer.setProfile("standard -xmp.ifd0");
+		Metacard standard = transformer.transform(FileUtils.openInputStream(file));
+		assertThat(standard.getMetadata().contains("Apple"), is(false));
+		assertThat(full.getMetadata().contains("Apple"), is(true));
+
+		transformer.setProfile("bogus");
+		assertThat(transformer.getProfile().getName(), is("standard -xmp.ifd0"));
+		assertThat(ExtractionProfile.STANDARD.isEnabled(ExtractionProfile.Feature.GENERATED_THUMBNAIL), is(false));
+	}
+
+	@Test()
+	public void testHeaderReaderSkipsFilteredSegments() throws IOException, com.drew.imaging.jpeg.JpegProcessingException {
+		byte[] jpeg = new byte[] {
+			(byte) 0xFF, (byte) 0xD8,
+			(byte) 0xFF, (byte) 0xE1, 0x00, 0x08, 'E', 'x', 'i', 'f', 0x00, 0x00,
+			(byte) 0xFF, (byte) 0xE2, 0x00, 0x05, 0x01, 0x02, 0x03,
+			(byte) 0xFF, (byte) 0xDA, 0x00
+		};
+		JpegHeaderReader reader = new JpegHeaderReader(new ByteArrayInputStream(jpeg), false, ExtractionProfile.MINIMAL);
+		assertThat(reader.reachedScan(), is(true));
+		assertThat(reader.getBytesRead(), is(21L));
+		assertThat(reader.getSegmentData().containsSegment((byte) 0xE1), is(true));
+		assertThat(reader.getSegmentData().containsSegment((byte) 0xE2), is(false));
+		assertThat(reader.getRemainder().read(), is(0xFF));
+	}
+
+	@Test()
+	public void testTeeToSink() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		Metacard expected = transformer.transform(FileUtils.openInputStream(file), "id");
+
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Metacard teed = transformer.transform(FileUtils.openInputStream(file), "id", sink);
+		assertEquals(expected.getMetadata(), teed.getMetadata());
+		assertEquals(expected.getLocation(), teed.getLocation());
+		assertArrayEquals(FileUtils.readFileToByteArray(file), sink.toByteArray());
+
+		// Segments skipped by a profile still reach the sink
+		transformer.setProfile("minimal");
+		sink.reset();
+		transformer.transform(FileUtils.openInputStream(file), "id", sink);
+		assertArrayEquals(FileUtils.readFileToByteArray(file), sink.toByteArray());
+
+		// So does input that is not a JPEG
+		sink.reset();
+		try {
+			transformer.transform(new ByteArrayInputStream("{key=".getBytes()), "id", sink);
+			fail("expected CatalogTransformerException");
+		} catch (CatalogTransformerException e) {
+			// expected
+		}
+		assertArrayEquals("{key=".getBytes(), sink.toByteArray());
+
+		// A sink that fails while the rest is forwarded does not hide why the transform failed
+		OutputStream failingSink = new ByteArrayOutputStream() {
+			@Override
+			public void flush() throws IOException {
+				throw new IOException("sink failed");
+			}
+		};
+		try {
+			transformer.transform(new ByteArrayInputStream("{key=".getBytes()), "id", failingSink);
+			fail("expected CatalogTransformerException");
+		} catch (CatalogTransformerException e) {
+			// expected
+		}
+	}
+
+	@Test()
+	public void testExifDateParser() {
+		Metadata metadata = new Metadata();
+		ExifSubIFDDirectory subIFD = metadata.getOrCreateDirectory(ExifSubIFDDirectory.class);
+		subIFD.setString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL, "2011:01:13 14:33:39");
+		subIFD.setString(ExifDateParser.TAG_OFFSET_TIME_ORIGINAL, "+09:30");
+		subIFD.setString(ExifDateParser.TAG_SUBSEC_TIME_ORIGINAL, "25");
+		subIFD.setString(ExifSubIFDDirectory.TAG_DATETIME_DIGITIZED, "2011:01:13 14:33:39");
+		ExifDateParser dates = new ExifDateParser(metadata);
+
+		GregorianCalendar expected = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		expected.clear();
+		expected.set(2011, 0, 13, 5, 3, 39);
+		expected.set(GregorianCalendar.MILLISECOND, 250);
+		Date original = dates.getDate(subIFD, ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+		assertEquals(expected.getTime(), original);
+		assertSame(original, dates.getDate(subIFD, ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL));
+
+		// Without an offset the default time zone applies, as it does for Directory.getDate()
+		assertEquals(subIFD.getDate(ExifSubIFDDirectory.TAG_DATETIME_DIGITIZED), dates.getDate(subIFD, ExifSubIFDDirectory.TAG_DATETIME_DIGITIZED));
+
+		assertThat(ExifDateParser.parseOffsetMinutes("-05:00"), is(-300));
+		assertThat(ExifDateParser.parseSubSecondMillis("5"), is(500));
+		assertThat(ExifDateParser.parseSubSecondMillis("0123"), is(12));
+		assertThat(ExifDateParser.parseLocalMillis("1970:01:02 00:00:01"), is(86401000L));
+		assertThat(ExifDateParser.parseLocalMillis("    :  :     :  :  "), is(Long.MIN_VALUE));
+	}
+
+	@Test()
+	public void testMetacardTypeIndexesNewAttributes() {
+		Set<String> basic = new HashSet<String>();
+		for (AttributeDescriptor descriptor : BasicTypes.BASIC_METACARD.getAttributeDescriptors()) {
+			basic.add(descriptor.getName());
+		}
+		String[] added = {JpegMetacardType.GEOHASH, JpegMetacardType.GEOHASH_3, JpegMetacardType.GEOHASH_5, JpegMetacardType.GEOHASH_7,
+				JpegMetacardType.GPS_ALTITUDE, JpegMetacardType.GPS_IMAGE_DIRECTION, JpegMetacardType.GPS_IMAGE_DIRECTION_REF, JpegMetacardType.GPS_DOP,
+				JpegMetacardType.PERCEPTUAL_HASH, JpegMetacardType.MPF_IMAGE_COUNT, JpegMetacardType.MPF_IMAGE_TYPES, JpegMetacardType.MPF_IMAGE_INDEX,
+				JpegMetacardType.MPF_PARENT_ID};
+		assertThat(JpegMetacardType.JPEG_METACARD.getAttributeDescriptors().size(), is(basic.size() + added.length));
+		for (String name : added) {
+			AttributeDescriptor descriptor = JpegMetacardType.JPEG_METACARD.getAttributeDescriptor(name);
+			assertNotNull(name, descriptor);
+			assertThat(name, descriptor.isIndexed(), is(true));
+			// Exact and prefix matches need the whole value as one term
+			assertThat(name, descriptor.isTokenized(), is(false));
+		}
+		assertSame(JpegMetacardType.JPEG_METACARD, JpegMetacardType.getMetacardType());
+	}
+
+	@Test()
+	public void testGeoHashes() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		transformer.setCacheSize(10);
+		transformer.transform(FileUtils.openInputStream(file));
+		Metacard metacard = transformer.transform(FileUtils.openInputStream(file));
+
+		assertEquals(JpegMetacardType.NAME, metacard.getMetacardType().getName());
+		assertEquals("sr2", metacard.getAttribute(JpegMetacardType.GEOHASH_3).getValue());
+		assertEquals("sr2yh", metacard.getAttribute(JpegMetacardType.GEOHASH_5).getValue());
+		assertEquals("sr2yh5n", metacard.getAttribute(JpegMetacardType.GEOHASH_7).getValue());
+		assertThat(((String) metacard.getAttribute(JpegMetacardType.GEOHASH).getValue()).startsWith("sr2yh5n"), is(true));
+	}
+
+	@Test()
+	public void testParseLimits() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		JpegInputTransformer transformer = createTransformer();
+		transformer.setMaxHeaderBytes(1024 * 1024);
+		transformer.setMaxSegmentBytes(32 * 1024);
+		transformer.setMaxTagsPerDirectory(1000);
+		assertThat(limitHit(transformer, AdversarialJpeg.manySegments(100, 16 * 1024)), is(ParseLimitExceededException.Limit.HEADER_BYTES));
+		assertThat(limitHit(transformer, AdversarialJpeg.endlessFill(2 * 1024 * 1024)), is(ParseLimitExceededException.Limit.HEADER_BYTES));
+		assertThat(limitHit(transformer, AdversarialJpeg.manySegments(1, 40 * 1024)), is(ParseLimitExceededException.Limit.SEGMENT_BYTES));
+		assertThat(limitHit(transformer, AdversarialJpeg.largeExifDirectory(2000)), is(ParseLimitExceededException.Limit.TAGS_PER_DIRECTORY));
+		assertThat(limitHit(transformer, AdversarialJpeg.manyIptcRecords(2000)), is(ParseLimitExceededException.Limit.TAGS_PER_DIRECTORY));
+		assertNull(limitHit(transformer, AdversarialJpeg.exifIfdLoop()));
+
+		// With partial metadata, the same files transform without whatever exceeded the limit
+		transformer.setPartialMetadataOnLimit(true);
+		assertNotNull(transformer.transform(new ByteArrayInputStream(AdversarialJpeg.manySegments(100, 16 * 1024))));
+		assertNotNull(transformer.transform(new ByteArrayInputStream(AdversarialJpeg.endlessFill(2 * 1024 * 1024))));
+		assertNotNull(transformer.transform(new ByteArrayInputStream(AdversarialJpeg.largeExifDirectory(2000))));
+		assertThat(transformer.getMetrics().getLimitHitCount(), is(3L));
+
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		assertNotNull(transformer.transform(FileUtils.openInputStream(file)).getCreatedDate());
+	}
+
+	@Test()
+	public void testParseGuard() throws Exception {
+		assertThat(ParseGuard.largestExifDirectory(firstPayload(AdversarialJpeg.largeExifDirectory(3000))), is(3000));
+		assertThat(ParseGuard.largestExifDirectory(firstPayload(AdversarialJpeg.exifIfdLoop())), is(2));
+		assertThat(ParseGuard.iptcRecordCount(firstPayload(AdversarialJpeg.manyIptcRecords(300))), is(300));
+
+		ParseGuard guard = new ParseGuard(0, 0, 0, 1, false);
+		Thread.sleep(5);
+		try {
+			guard.withinDeadline();
+			fail("expected ParseLimitExceededException");
+		} catch (ParseLimitExceededException e) {
+			assertThat(e.getLimit(), is(ParseLimitExceededException.Limit.DEADLINE));
+		}
+		ParseGuard partial = new ParseGuard(0, 0, 0, 1, true);
+		Thread.sleep(5);
+		assertThat(partial.withinDeadline(), is(false));
+		assertThat(partial.getLimitHit(), is(ParseLimitExceededException.Limit.DEADLINE));
+	}
+
+	@Test()
+	public void testAdversarialLatency() throws IOException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		JpegInputTransformer transformer = createTransformer();
+		byte[][] files = {
+			AdversarialJpeg.manySegments(400, 60000),
+			AdversarialJpeg.endlessFill(17 * 1024 * 1024),
+			AdversarialJpeg.largeExifDirectory(5000),
+			AdversarialJpeg.manyIptcRecords(10000),
+			AdversarialJpeg.exifIfdLoop()
+		};
+		for (byte[] jpeg : files) {
+			long start = System.nanoTime();
+			try {
+				transformer.transform(new ByteArrayInputStream(jpeg));
+			} catch (CatalogTransformerException e) {
+				// expected for most of them
+			}
+			assertThat((System.nanoTime() - start) < 5000000000L, is(true));
+		}
+	}
+
+	@Test()
+	public void testPerceptualHash() throws Exception {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		PerceptualHashIndex index = new PerceptualHashIndex();
+		transformer.setNearDuplicateIndex(index);
+		Metacard metacard = transformer.transform(FileUtils.openInputStream(file), "original");
+		String hash = (String) metacard.getAttribute(JpegMetacardType.PERCEPTUAL_HASH).getValue();
+		assertThat(hash.length(), is(16));
+		assertThat(index.size(), is(1));
+
+		// A re-encoded copy of the thumbnail looks the same
+		BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(metacard.getThumbnail()));
+		ByteArrayOutputStream reencoded = new ByteArrayOutputStream();
+		ImageIO.write(thumbnail, "png", reencoded);
+		long copy = PerceptualHash.dHash(reencoded.toByteArray());
+		assertThat(PerceptualHash.distance(PerceptualHash.fromHex(hash), copy) <= 2, is(true));
+
+		index.add("copy", copy);
+		index.add("unrelated", ~copy);
+		List<PerceptualHashIndex.Match> matches = index.search(metacard, 4);
+		assertThat(matches.size(), is(2));
+		assertThat(matches.get(0).getId(), is("original"));
+		assertThat(index.search(~copy, 0).get(0).getId(), is("unrelated"));
+
+		File saved = File.createTempFile("perceptual-hash", ".idx");
+		saved.deleteOnExit();
+		PerceptualHashIndex persisted = new PerceptualHashIndex(saved);
+		persisted.add("original", PerceptualHash.fromHex(hash));
+		persisted.add("copy", copy);
+		persisted.add("unrelated", ~copy);
+		persisted.remove("unrelated");
+		persisted.save();
+		PerceptualHashIndex loaded = new PerceptualHashIndex(saved);
+		loaded.load();
+		assertThat(loaded.size(), is(2));
+		assertEquals(persisted.search(copy, 64).toString(), loaded.search(copy, 64).toString());
+
+		// Saved in the background once the interval is reached
+		loaded.setSaveInterval(2);
+		loaded.add("unrelated", ~copy);
+		assertThat(loaded.getUnsavedChanges(), is(1));
+		loaded.remove("copy");
+		loaded.awaitBackgroundSave();
+		assertThat(loaded.getUnsavedChanges(), is(0));
+		PerceptualHashIndex reloaded = new PerceptualHashIndex(saved);
+		reloaded.load();
+		assertThat(reloaded.size(), is(2));
+		assertThat(reloaded.search(copy, 0).size(), is(0));
+
+		// And flushed on close
+		loaded.add("copy", copy);
+		loaded.close();
+		reloaded.load();
+		assertThat(reloaded.size(), is(3));
+
+		transformer.setProfile("full -perceptualhash");
+		assertNull(transformer.transform(FileUtils.openInputStream(file)).getAttribute(JpegMetacardType.PERCEPTUAL_HASH));
+	}
+
+	@Test()
+	public void testThumbnailStore() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		File file = new File(TEST_DATA_PATH + "Apple iPhone 4.jpg");
+		JpegInputTransformer transformer = createTransformer();
+		byte[] expected = transformer.transform(FileUtils.openInputStream(file)).getThumbnail();
+
+		transformer.setThumbnailStoreBytes(1024 * 1024);
+		ThumbnailStore store = transformer.getThumbnailStore();
+		transformer.setThumbnailStoreBytes(1024 * 1024);
+		assertSame(store, transformer.getThumbnailStore());
+		Metacard first = transformer.transform(FileUtils.openInputStream(file));
+		Metacard duplicate = transformer.transform(FileUtils.openInputStream(file));
+		assertThat(first instanceof StoredThumbnailMetacard, is(true));
+		assertArrayEquals(expected, first.getThumbnail());
+		assertArrayEquals(expected, (byte[]) duplicate.getAttribute(Metacard.THUMBNAIL).getValue());
+		assertThat(store.size(), is(1));
+		assertThat(store.getDuplicates(), is(1L));
+		assertThat(store.getStoredBytes(), is((long) expected.length));
+
+		((StoredThumbnailMetacard) first).getThumbnailRef().release();
+		assertThat(store.getReferenceCount(), is(1));
+		assertArrayEquals(expected, duplicate.getThumbnail());
+
+		// Once the store is full, unreferenced thumbnails go first
+		ThumbnailStore small = new ThumbnailStore(4 * 4096, 4096);
+		ThumbnailStore.Ref kept = small.put(new byte[] {1, 2, 3});
+		small.put(new byte[] {4, 5, 6}).release();
+		small.put(new byte[3 * 4096]);
+		assertThat(small.getEvictions(), is(1L));
+		assertArrayEquals(new byte[] {1, 2, 3}, kept.getBytes());
+		assertNull(small.put(new byte[5 * 4096]));
+	}
+
+	@Test()
+	public void testThumbnailStoreReferences() {
+		// References that outlive an evicted thumbnail count towards it when it is stored again
+		ThumbnailStore store = new ThumbnailStore(2 * 4096, 4096);
+		ThumbnailStore.Ref original = store.put(new byte[] {1});
+		ThumbnailStore.Ref large = store.put(new byte[2 * 4096]);
+		assertNull(original.getBytes());
+		ThumbnailStore.Ref again = store.put(new byte[] {1});
+		assertNull(large.getBytes());
+		again.release();
+		store.put(new byte[] {2}).release();
+		store.put(new byte[] {3});
+		assertArrayEquals(new byte[] {1}, original.getBytes());
+		assertThat(store.getEvictions(), is(3L));
+
+		// Unreferenced thumbnails are evicted in the order they were last read
+		ThumbnailStore recent = new ThumbnailStore(2 * 4096, 4096);
+		ThumbnailStore.Ref first = recent.put(new byte[] {1});
+		ThumbnailStore.Ref second = recent.put(new byte[] {2});
+		first.release();
+		second.release();
+		assertArrayEquals(new byte[] {1}, first.getBytes());
+		recent.put(new byte[] {3});
+		assertArrayEquals(new byte[] {1}, first.getBytes());
+		assertNull(second.getBytes());
+	}
+
+	@Test()
+	public void testThumbnailStoreResize() {
+		ThumbnailStore store = new ThumbnailStore(4 * 4096, 4096);
+		ThumbnailStore.Ref a = store.put(new byte[] {1});
+		byte[] large = new byte[4097];
+		Arrays.fill(large, (byte) 2);
+		ThumbnailStore.Ref b = store.put(large);
+		ThumbnailStore.Ref c = store.put(new byte[] {3});
+		b.release();
+		ThumbnailStore.Ref d = store.put(new byte[] {4});
+		assertThat(store.getAllocatedBytes(), is(4L * 4096));
+
+		// The thumbnail in the last block moves into the block left free by the eviction
+		store.setCapacity(3 * 4096);
+		assertThat(store.getCapacity(), is(3L * 4096));
+		assertThat(store.getAllocatedBytes(), is(3L * 4096));
+		assertThat(store.size(), is(3));
+		assertThat(store.getEvictions(), is(1L));
+		assertArrayEquals(new byte[] {1}, a.getBytes());
+		assertArrayEquals(new byte[] {3}, c.getBytes());
+		assertArrayEquals(new byte[] {4}, d.getBytes());
+
+		// Without room, the thumbnails beyond the new end are evicted
+		store.setCapacity(2 * 4096);
+		assertThat(store.getAllocatedBytes(), is(2L * 4096));
+		assertThat(store.size(), is(2));
+
+		store.setCapacity(8 * 4096);
+		ThumbnailStore.Ref e = store.put(new byte[6 * 4096]);
+		assertThat(store.getAllocatedBytes(), is(8L * 4096));
+		assertArrayEquals(new byte[6 * 4096], e.getBytes());
+		assertArrayEquals(new byte[] {1}, a.getBytes());
+	}
+
+	@Test()
+	public void testMultiPicture() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+		byte[] view = FileUtils.readFileToByteArray(new File(TEST_DATA_PATH + "Apple iPhone 4.jpg"));
+		byte[] mpo = stereoPair(view, view);
+		File file = File.createTempFile("stereo", ".mpo");
+		file.deleteOnExit();
+		FileUtils.writeByteArrayToFile(file, mpo);
+		JpegInputTransformer transformer = createTransformer();
+
+		List<Metacard> images = transformer.transformImages(file, "mpo");
+		assertThat(images.size(), is(2));
+		Metacard primary = images.get(0);
+		assertThat(primary.getId(), is("mpo"));
+		assertThat((Integer) primary.getAttribute(JpegMetacardType.MPF_IMAGE_COUNT).getValue(), is(2));
+		assertEquals("[primary, disparity]", primary.getAttribute(JpegMetacardType.MPF_IMAGE_TYPES).getValues().toString());
+		Metacard second = images.get(1);
+		assertThat(second.getId(), is("mpo-1"));
+		assertThat((Integer) second.getAttribute(JpegMetacardType.MPF_IMAGE_INDEX).getValue(), is(1));
+		assertThat((String) second.getAttribute(JpegMetacardType.MPF_PARENT_ID).getValue(), is("mpo"));
+		assertNull(second.getAttribute(JpegMetacardType.MPF_IMAGE_COUNT));
+		assertEquals(primary.getCreatedDate(), second.getCreatedDate());
+
+		// Streamed, the image data between the headers is skipped
+		List<Metacard> streamed = transformer.transformImages(new ByteArrayInputStream(mpo), "mpo");
+		assertThat(streamed.size(), is(2));
+		assertThat(streamed.get(1).getId(), is("mpo-1"));
+		assertArrayEquals(second.getThumbnail(), streamed.get(1).getThumbnail());
+
+		assertThat(transformer.transformImages(new ByteArrayInputStream(view), null).size(), is(1));
+		transformer.setProfile("full -mpf");
+		assertThat(transformer.transformImages(file, null).size(), is(1));
+		assertNull(transformer.transformFile(file).getAttribute(JpegMetacardType.MPF_IMAGE_COUNT));
+	}
+
+	private static ParseLimitExceededException.Limit limitHit(JpegInputTransformer transformer, byte[] jpeg) throws IOException {
+		try {
+			transformer.transform(new ByteArrayInputStream(jpeg));
+			return null;
+		} catch (CatalogTransformerException e) {
+			if (e.getCause() instanceof ParseLimitExceededException) {
+				return ((ParseLimitExceededException) e.getCause()).getLimit();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The payload of the first segment of a generated file.
+	 */
+	private static byte[] firstPayload(byte[] jpeg) {
+		int length = ((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF);
+		byte[] payload = new byte[length - 2];
+		System.arraycopy(jpeg, 6, payload, 0, payload.length);
+		return payload;
+	}
+
+	@Test()
+	public void testReuseEmbeddedXmp() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException, XMPException {
+		byte[] original = FileUtils.readFileToByteArray(new File(TEST_DATA_PATH + "Apple iPhone 4.jpg"));
+		byte[] tagged = withXmp(original, "<?xpacket begin=\"\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>"
+				+ "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+				+ "<rdf:Description rdf:about=\"\" xmlns:tiff=\"http://ns.adobe.com/tiff/1.0/\" xmlns:photoshop=\"http://ns.adobe.com/photoshop/1.0/\">"
+				+ "<tiff:Make>Workflow Make</tiff:Make><photoshop:Headline>Colosseum</photoshop:Headline>"
+				+ "</rdf:Description></rdf:RDF></x:xmpmeta><?xpacket end=\"w\"?>");
+		JpegInputTransformer transformer = createTransformer();
+		XMPMeta rebuilt = XMPMetaFactory.parseFromString(transformer.transform(new ByteArrayInputStream(tagged)).getMetadata());
+		assertThat(rebuilt.getPropertyString(XMPConst.NS_TIFF, "Make"), is("Apple"));
+		assertThat(rebuilt.doesPropertyExist(XMPConst.NS_PHOTOSHOP, "Headline"), is(false));
+
+		transformer.setReuseEmbeddedXmp(true);
+		String merged = transformer.transform(new ByteArrayInputStream(tagged)).getMetadata();
+		XMPMeta mergedXmp = XMPMetaFactory.parseFromString(merged);
+		assertThat(mergedXmp.getPropertyString(XMPConst.NS_TIFF, "Make"), is("Workflow Make"));
+		assertThat(mergedXmp.getPropertyString(XMPConst.NS_PHOTOSHOP, "Headline"), is("Colosseum"));
+		assertThat(mergedXmp.getPropertyString(XMPConst.NS_TIFF, "Model"), is(rebuilt.getPropertyString(XMPConst.NS_TIFF, "Model")));
+		assertThat(mergedXmp.getPropertyString(XMPConst.NS_EXIF, "PixelXDimension"), is(rebuilt.getPropertyString(XMPConst.NS_EXIF, "PixelXDimension")));
+
+		// A packet that already has every mapped property is used as it is
+		assertEquals(merged, transformer.transform(new ByteArrayInputStream(withXmp(original, merged))).getMetadata());
+
+		// Without a packet the XMP is built from the mappings
+		assertEquals(rebuilt.getPropertyString(XMPConst.NS_TIFF, "Make"), XMPMetaFactory.parseFromString(transformer.transform(new ByteArrayInputStream(original)).getMetadata()).getPropertyString(XMPConst.NS_TIFF, "Make"));
+
+		transformer.setProfile("minimal +xmp +xmp.subifd");
+		XMPMeta filtered = XMPMetaFactory.parseFromString(transformer.transform(new ByteArrayInputStream(tagged)).getMetadata());
+		assertThat(filtered.getPropertyString(XMPConst.NS_PHOTOSHOP, "Headline"), is("Colosseum"));
+	}
+
+	/**
+	 * Inserts an XMP packet into a JPEG, in an APP1 segment straight after the SOI marker.
+	 */
+	private static byte[] withXmp(byte[] jpeg, String packet) throws IOException {
+		byte[] identifier = "http://ns.adobe.com/xap/1.0/\0".getBytes("UTF-8");
+		byte[] xmp = packet.getBytes("UTF-8");
+		int length = identifier.length + xmp.length + 2;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(jpeg, 0, 2);
+		out.write(0xFF);
+		out.write(0xE1);
+		out.write(length >> 8);
+		out.write(length & 0xFF);
+		out.write(identifier);
+		out.write(xmp);
+		out.write(jpeg, 2, jpeg.length - 2);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A Multi-Picture file of two images, with an MPF segment listing both in front of the first.
+	 */
+	private static byte[] stereoPair(byte[] left, byte[] right) throws IOException {
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		index.write(new byte[] {'M', 'P', 'F', 0, 'M', 'M', 0, 0x2A, 0, 0, 0, 8});
+		// NumberOfImages and MPEntry, then the MP entries at offset 38 from the TIFF header
+		index.write(new byte[] {0, 2});
+		index.write(new byte[] {(byte) 0xB0, 0x01, 0, 4, 0, 0, 0, 1, 0, 0, 0, 2});
+		index.write(new byte[] {(byte) 0xB0, 0x02, 0, 7, 0, 0, 0, 32, 0, 0, 0, 38});
+		index.write(new byte[] {0, 0, 0, 0});
+		int payloadLength = index.size() + 32;
+		int leftLength = left.length + 4 + payloadLength;
+		writeMpEntry(index, 0x20030000, leftLength, 0);
+		// Offsets are from the TIFF header, which follows SOI, the APP2 marker and length, and "MPF\0"
+		writeMpEntry(index, 0x00020002, right.length, leftLength - 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(left, 0, 2);
+		out.write(0xFF);
+		out.write(0xE2);
+		out.write((payloadLength + 2) >> 8);
+		out.write((payloadLength + 2) & 0xFF);
+		index.writeTo(out);
+		out.write(left, 2, left.length - 2);
+		out.write(right);
+		return out.toByteArray();
+	}
+
+	private static void writeMpEntry(ByteArrayOutputStream out, int type, int size, int offset) {
+		for (int value : new int[] {type, size, offset, 0}) {
+			out.write(value >>> 24);
+			out.write((value >> 16) & 0xFF);
+			out.write((value >> 8) & 0xFF);
+			out.write(value & 0xFF);
+		}
+	}
 }